@@ -0,0 +1,55 @@
+package net.frebib.sscdownloader.bench;
+
+import net.frebib.sscdownloader.DownloadTask;
+import net.frebib.sscdownloader.gui.ArrayListModel;
+
+import java.io.File;
+import java.net.URL;
+import java.util.Random;
+
+/**
+ * Measures the lookups {@link net.frebib.sscdownloader.gui.DownloadListModel}
+ * makes for every progress event, as the list grows. The cost per lookup
+ * should stay flat rather than growing with the size of the list. Removing
+ * and putting back the last element is also measured, which only moves one
+ * position and so should stay flat too. Inserts and removes are O(n - index)
+ */
+public class ArrayListModelBenchmark {
+    private static final int[] SIZES = { 1_000, 10_000, 50_000, 100_000 };
+    private static final int LOOKUPS = 100_000;
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+        for (int size : SIZES) {
+            ArrayListModel<DownloadTask> model = new ArrayListModel<>();
+            DownloadTask[] tasks = new DownloadTask[size];
+            for (int i = 0; i < size; i++) {
+                tasks[i] = new DownloadTask(new URL("http://localhost/" + i), "file" + i, dir);
+                model.add(tasks[i]);
+            }
+
+            int[] order = new Random(size).ints(LOOKUPS, 0, size).toArray();
+            Bench.report("ArrayListModel.indexOf", size, Bench.nanosPerOp(LOOKUPS, () -> {
+                long sum = 0;
+                for (int i : order)
+                    sum += model.indexOf(tasks[i]);
+                return sum;
+            }));
+            Bench.report("ArrayListModel.contains", size, Bench.nanosPerOp(LOOKUPS, () -> {
+                long hits = 0;
+                for (int i : order)
+                    if (model.contains(tasks[i]))
+                        hits++;
+                return hits;
+            }));
+            Bench.report("ArrayListModel.remove+add last", size, Bench.nanosPerOp(LOOKUPS, () -> {
+                DownloadTask last = tasks[size - 1];
+                for (int i = 0; i < LOOKUPS; i++) {
+                    model.remove(size - 1);
+                    model.add(size - 1, last);
+                }
+                return model.indexOf(last);
+            }));
+        }
+    }
+}
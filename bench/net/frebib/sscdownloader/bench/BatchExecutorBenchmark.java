@@ -0,0 +1,69 @@
+package net.frebib.sscdownloader.bench;
+
+import net.frebib.sscdownloader.concurrent.BatchExecutor;
+import net.frebib.sscdownloader.concurrent.Task;
+import net.frebib.sscdownloader.concurrent.ThreadMode;
+
+import java.util.List;
+
+/**
+ * Measures the overhead {@link BatchExecutor} adds to every task it runs: queueing it,
+ * handing it to a thread, collecting its result and completing the batch. The tasks
+ * do no work of their own, so the figures are the cost of dispatch alone
+ */
+public class BatchExecutorBenchmark {
+    private static final int[] THREADS = { 1, 4, 16 };
+    private static final int TASKS = 20_000;
+
+    public static void main(String[] args) {
+        for (ThreadMode mode : ThreadMode.values()) {
+            for (int threads : THREADS) {
+                String param = threads + " " + mode.name().toLowerCase();
+                Bench.report("BatchExecutor add+start", param, Bench.nanosPerOp(TASKS, () -> {
+                    BatchExecutor<Noop, Integer> executor = new BatchExecutor<>(threads, mode);
+                    for (int i = 0; i < TASKS; i++)
+                        executor.add(new Noop(i));
+                    try {
+                        executor.start();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return sum(executor.getFuture().join());
+                }));
+                Bench.report("BatchExecutor open+submit", param, Bench.nanosPerOp(TASKS, () -> {
+                    BatchExecutor<Noop, Integer> executor = new BatchExecutor<Noop, Integer>(threads, mode).open();
+                    for (int i = 0; i < TASKS; i++)
+                        executor.submit(new Noop(i));
+                    executor.close();
+                    return sum(executor.getFuture().join());
+                }));
+                Bench.report("BatchExecutor limitPerHost", param, Bench.nanosPerOp(TASKS, () -> {
+                    BatchExecutor<Noop, Integer> executor = new BatchExecutor<Noop, Integer>(threads, mode)
+                            .limitPerHost(threads).open();
+                    for (int i = 0; i < TASKS; i++)
+                        executor.submit(new Noop(i));
+                    executor.close();
+                    return sum(executor.getFuture().join());
+                }));
+            }
+        }
+    }
+
+    private static long sum(List<Integer> results) {
+        long sum = 0;
+        for (int r : results)
+            sum += r;
+        return sum;
+    }
+
+    private static class Noop extends Task<Integer, Integer> {
+        Noop(int i) {
+            super(i);
+        }
+
+        @Override
+        public Integer call(Integer i) {
+            return i;
+        }
+    }
+}
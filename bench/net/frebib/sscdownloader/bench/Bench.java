@@ -0,0 +1,74 @@
+package net.frebib.sscdownloader.bench;
+
+import net.frebib.sscdownloader.Logs;
+import net.frebib.util.Log;
+
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+
+/**
+ * A minimal timing harness for the benchmarks in this directory.
+ * Each measurement is warmed up, then repeated and the fastest run kept.
+ * Only warnings are logged to the console, but the log file is still
+ * written as it is when the downloader runs. The level and overflow policy
+ * of the log can be changed with the {@code bench.log} and {@code bench.overflow}
+ * system properties, such as {@code -Dbench.log=INFO} or {@code -Dbench.overflow=DROP}
+ */
+public final class Bench {
+    private static final int WARMUP_RUNS = 5;
+    private static final int MEASURED_RUNS = 5;
+
+    /**
+     * Stops results being optimised away. Only read to make it observable
+     */
+    public static volatile long sink;
+
+    static {
+        Logs.LOG.setLevel(Level.parse(System.getProperty("bench.log", "FINEST")))
+                .setOverflow(Log.Overflow.valueOf(System.getProperty("bench.overflow", "BLOCK")))
+                .setConsoleLevel(Level.WARNING);
+    }
+
+    private Bench() { }
+
+    /**
+     * Measures the average time taken by an operation
+     * @param ops how many times the operation is performed by each call of {@code batch}
+     * @param batch performs the operation {@code ops} times, returning any value derived from the results
+     * @return the fastest time per operation in nanoseconds
+     */
+    public static double nanosPerOp(int ops, LongSupplier batch) {
+        for (int i = 0; i < WARMUP_RUNS; i++)
+            sink += batch.getAsLong();
+
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < MEASURED_RUNS; i++) {
+            long start = System.nanoTime();
+            sink += batch.getAsLong();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return (double) best / ops;
+    }
+
+    /**
+     * Prints a row of a results table
+     * @param name name of the benchmark
+     * @param param the parameter it was run with
+     * @param nanos time per operation in nanoseconds
+     */
+    public static void report(String name, Object param, double nanos) {
+        System.out.printf("%-40s %10s %14.1f ns/op%n", name, param, nanos);
+    }
+
+    /**
+     * Prints a row of a results table for an operation that moves data
+     * @param name name of the benchmark
+     * @param param the parameter it was run with
+     * @param nanos time per operation in nanoseconds
+     * @param bytes amount of bytes moved by each operation
+     */
+    public static void reportRate(String name, Object param, double nanos, long bytes) {
+        System.out.printf("%-40s %10s %14.1f ns/op %10.1f MiB/s%n", name, param, nanos,
+                bytes / (nanos / 1e9) / (1024 * 1024));
+    }
+}
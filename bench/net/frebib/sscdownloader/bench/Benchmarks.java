@@ -0,0 +1,46 @@
+package net.frebib.sscdownloader.bench;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Runs every benchmark in this directory, or just the ones named on the command line
+ * by the start of their class name, such as {@code MimeType} or {@code DownloadTask}
+ */
+public class Benchmarks {
+    private static final Map<String, Runnable> BENCHMARKS = new LinkedHashMap<>();
+
+    static {
+        BENCHMARKS.put("WebpageCrawlerBenchmark", () -> WebpageCrawlerBenchmark.main(new String[0]));
+        BENCHMARKS.put("MimeTypeCollectionBenchmark", () -> MimeTypeCollectionBenchmark.main(new String[0]));
+        BENCHMARKS.put("FileEvaluatorBenchmark", unchecked(FileEvaluatorBenchmark::main));
+        BENCHMARKS.put("DownloadTaskBenchmark", unchecked(DownloadTaskBenchmark::main));
+        BENCHMARKS.put("BatchExecutorBenchmark", () -> BatchExecutorBenchmark.main(new String[0]));
+        BENCHMARKS.put("ArrayListModelBenchmark", unchecked(ArrayListModelBenchmark::main));
+    }
+
+    public static void main(String[] args) {
+        BENCHMARKS.forEach((name, benchmark) -> {
+            if (args.length == 0 || Arrays.stream(args).anyMatch(name::startsWith)) {
+                System.out.println("# " + name);
+                benchmark.run();
+                System.out.println();
+            }
+        });
+    }
+
+    private static Runnable unchecked(Main main) {
+        return () -> {
+            try {
+                main.main(new String[0]);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+
+    private interface Main {
+        void main(String[] args) throws Exception;
+    }
+}
@@ -0,0 +1,60 @@
+package net.frebib.sscdownloader.bench;
+
+import net.frebib.sscdownloader.ContentIndex;
+import net.frebib.sscdownloader.DownloadTask;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Measures the rate {@link DownloadTask} copies a response body to disk at, reading
+ * it from a {@link MemoryTransport} so the copy loop and file writes are all that is
+ * timed. Files are written to the temporary directory, so the figures depend on the
+ * disk it is on. The copy is also measured while hashing for {@link ContentIndex}
+ */
+public class DownloadTaskBenchmark {
+    private static final int[] SIZES = { 64 * 1024, 1024 * 1024, 16 * 1024 * 1024 };
+    private static final long BYTES_PER_BATCH = 64L * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        File dir = Files.createTempDirectory("ssc-bench").toFile();
+        try {
+            for (int size : SIZES) {
+                URL url = new URL("http://localhost/file-" + size + ".bin");
+                byte[] body = new byte[size];
+                new Random(size).nextBytes(body);
+                MemoryTransport transport = new MemoryTransport().put(url, "application/octet-stream", body);
+                int files = (int) Math.max(1, BYTES_PER_BATCH / size);
+
+                for (ContentIndex.Mode mode : new ContentIndex.Mode[] { ContentIndex.Mode.OFF, ContentIndex.Mode.SKIP }) {
+                    ContentIndex.setMode(mode);
+                    Bench.reportRate("DownloadTask.call " + (mode == ContentIndex.Mode.OFF ? "copy" : "copy+hash"),
+                            size, Bench.nanosPerOp(files, () -> {
+                                long bytes = 0;
+                                for (int i = 0; i < files; i++) {
+                                    DownloadTask task = new DownloadTask(url, "file.bin", dir).setTransport(transport);
+                                    try {
+                                        task.call(url);
+                                    } catch (Exception e) {
+                                        throw new IllegalStateException(e);
+                                    }
+                                    if (task.getState() != DownloadTask.State.COMPLETED)
+                                        throw new IllegalStateException("Download failed: " + task.getState());
+                                    bytes += task.getBytes();
+                                }
+                                return bytes;
+                            }), size);
+                }
+                ContentIndex.setMode(ContentIndex.Mode.OFF);
+            }
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null)
+                for (File f : files)
+                    f.delete();
+            dir.delete();
+        }
+    }
+}
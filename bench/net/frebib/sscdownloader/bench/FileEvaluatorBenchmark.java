@@ -0,0 +1,58 @@
+package net.frebib.sscdownloader.bench;
+
+import net.frebib.sscdownloader.DownloadTask;
+import net.frebib.sscdownloader.FileEvaluator;
+import net.frebib.sscdownloader.FileEvaluator.EvalTask;
+import net.frebib.sscdownloader.MimeTypeCollection;
+
+import java.io.File;
+import java.net.URL;
+
+/**
+ * Measures the rate a {@link FileEvaluator.EvalTask} works out the file name and
+ * extension of a link at. {@link EvalTask#evalExtension()} needs the headers of the
+ * link to have been fetched, so the whole task is called against a {@link MemoryTransport}
+ * and the cost of the request is just that of building the response
+ */
+public class FileEvaluatorBenchmark {
+    private static final int LINKS = 10_000;
+    private static final String[][] FILES = {
+            { "photo-%d.jpg", "image/jpeg" },       // Extension matches the type
+            { "photo-%d.jpeg", "image/jpeg" },      // Another extension of the type
+            { "PHOTO-%d.JPG", "image/jpeg" },       // Upper case extension
+            { "image-%d.php", "image/gif" },        // Extension of another type
+            { "page %d.html", "text/html" },        // Filtered out
+    };
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"));
+        MimeTypeCollection mimes = MimeTypeCollection.COMMON_IMAGES;
+
+        for (String[] file : FILES) {
+            MemoryTransport transport = new MemoryTransport();
+            URL[] urls = new URL[LINKS];
+            for (int i = 0; i < LINKS; i++) {
+                urls[i] = new URL("http://localhost/files/" + String.format(file[0], i).replace(" ", "%20"));
+                transport.put(urls[i], file[1], new byte[0]);
+            }
+            FileEvaluator evaluator = new FileEvaluator(mimes, 1, null);
+            evaluator.setTransport(transport);
+
+            Bench.report("EvalTask.call " + file[1], file[0], Bench.nanosPerOp(LINKS, () -> {
+                long accepted = 0;
+                for (URL url : urls) {
+                    DownloadTask task;
+                    try {
+                        task = evaluator.new EvalTask(url, dir).call(url);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                    if (task != null)
+                        accepted++;
+                }
+                return accepted;
+            }));
+            evaluator.shutdown();
+        }
+    }
+}
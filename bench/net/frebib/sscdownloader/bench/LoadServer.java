@@ -0,0 +1,179 @@
+package net.frebib.sscdownloader.bench;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A web server on the loopback interface that serves a listing page linking to a set
+ * of generated files, for measuring the whole downloader without a real site. Every
+ * response can be delayed and its body throttled, to stand in for a distant server.
+ * Files are served with {@code Content-Length}, an {@code ETag} and byte ranges,
+ * so both single and segmented downloads can be measured
+ */
+public class LoadServer implements AutoCloseable {
+    /**
+     * The path of the listing page
+     */
+    public static final String LISTING = "/index.html";
+
+    private static final int CHUNK_SIZE = 16 * 1024;
+
+    private final HttpServer server;
+    private final ExecutorService pool;
+    private final long[] sizes;
+    private final byte[] content;
+    private final int latencyMillis;
+    private final long bandwidth;
+
+    /**
+     * Starts a server on a free port
+     * @param sizes the size of each file to serve, in bytes
+     * @param latencyMillis how long to wait before sending each response
+     * @param bandwidth the most bytes per second to send each response body at, or 0 for no limit
+     * @throws IOException if the server can't be started
+     */
+    public LoadServer(long[] sizes, int latencyMillis, long bandwidth) throws IOException {
+        this.sizes = sizes;
+        this.latencyMillis = latencyMillis;
+        this.bandwidth = bandwidth;
+        // Files are cut from one block of random data, starting at a different place each
+        this.content = new byte[4 * 1024 * 1024];
+        new Random(0).nextBytes(content);
+
+        this.pool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "load-server");
+            t.setDaemon(true);
+            return t;
+        });
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 128);
+        server.createContext("/", this::handle);
+        server.setExecutor(pool);
+        server.start();
+    }
+
+    /**
+     * Gets the link to the listing page
+     */
+    public URL getListing() {
+        try {
+            return new URL("http", "127.0.0.1", server.getAddress().getPort(), LISTING);
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Gets the total size of all of the files
+     */
+    public long getTotalBytes() {
+        long total = 0;
+        for (long size : sizes)
+            total += size;
+        return total;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        pool.shutdownNow();
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        try {
+            if (latencyMillis > 0)
+                Thread.sleep(latencyMillis);
+
+            String path = ex.getRequestURI().getPath();
+            if (path.equals(LISTING))
+                sendListing(ex);
+            else if (path.startsWith("/files/file-") && path.endsWith(".jpg"))
+                sendFile(ex, Integer.parseInt(path.substring(12, path.length() - 4)));
+            else
+                sendStatus(ex, 404);
+        } catch (NumberFormatException | IndexOutOfBoundsException e) {
+            sendStatus(ex, 404);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            // The client closed the connection, which is expected for filtered GETs
+        } finally {
+            ex.close();
+        }
+    }
+
+    private void sendListing(HttpExchange ex) throws IOException {
+        StringBuilder sb = new StringBuilder("<html><body><h1>Index of /files/</h1><ul>");
+        for (int i = 0; i < sizes.length; i++)
+            sb.append("<li><a href=\"files/file-").append(i).append(".jpg\">file-").append(i).append(".jpg</a></li>");
+        byte[] body = sb.append("</ul></body></html>").toString().getBytes(StandardCharsets.UTF_8);
+
+        ex.getResponseHeaders().set("Content-Type", "text/html; charset=UTF-8");
+        ex.sendResponseHeaders(200, body.length);
+        ex.getResponseBody().write(body);
+    }
+
+    private void sendFile(HttpExchange ex, int index) throws IOException, InterruptedException {
+        long size = sizes[index];
+        long start = 0, end = size - 1;
+        int status = 200;
+
+        String range = ex.getRequestHeaders().getFirst("Range");
+        if (range != null && range.startsWith("bytes=")) {
+            String[] bounds = range.substring(6).split("-", -1);
+            start = Long.parseLong(bounds[0]);
+            if (!bounds[1].isEmpty())
+                end = Math.min(end, Long.parseLong(bounds[1]));
+            if (start > end) {
+                ex.getResponseHeaders().set("Content-Range", "bytes */" + size);
+                sendStatus(ex, 416);
+                return;
+            }
+            status = 206;
+            ex.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + size);
+        }
+
+        ex.getResponseHeaders().set("Content-Type", "image/jpeg");
+        ex.getResponseHeaders().set("Accept-Ranges", "bytes");
+        ex.getResponseHeaders().set("ETag", "\"" + index + "-" + size + "\"");
+        long length = end - start + 1;
+        if (ex.getRequestMethod().equals("HEAD")) {
+            ex.getResponseHeaders().set("Content-Length", Long.toString(length));
+            ex.sendResponseHeaders(status, -1);
+            return;
+        }
+        ex.sendResponseHeaders(status, length);
+
+        OutputStream out = ex.getResponseBody();
+        int offset = (int) ((index * 7919L) % content.length);
+        long sent = 0, began = System.nanoTime();
+        while (sent < length) {
+            int pos = (int) ((offset + start + sent) % content.length);
+            int count = (int) Math.min(Math.min(CHUNK_SIZE, length - sent), content.length - pos);
+            out.write(content, pos, count);
+            sent += count;
+            if (bandwidth > 0) {
+                // Wait until the bytes sent so far are within the bandwidth
+                long due = began + TimeUnit.SECONDS.toNanos(1) * sent / bandwidth;
+                long wait = due - System.nanoTime();
+                if (wait > 0)
+                    TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+
+    private static void sendStatus(HttpExchange ex, int status) throws IOException {
+        ex.sendResponseHeaders(status, -1);
+    }
+}
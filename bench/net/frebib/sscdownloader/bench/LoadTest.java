@@ -0,0 +1,216 @@
+package net.frebib.sscdownloader.bench;
+
+import net.frebib.sscdownloader.DownloadPipeline;
+import net.frebib.sscdownloader.DownloadTask;
+import net.frebib.sscdownloader.Logs;
+import net.frebib.sscdownloader.MimeTypeCollection;
+import net.frebib.sscdownloader.WebpageCrawler;
+import net.frebib.sscdownloader.concurrent.ThreadMode;
+import net.frebib.sscdownloader.metrics.Histogram;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Measures the whole downloader against a {@link LoadServer} on the loopback interface:
+ * the listing is crawled with {@link WebpageCrawler}, then every link is evaluated and
+ * downloaded through a {@link DownloadPipeline}, as the command line client does. The
+ * run is repeated for each thread count, reporting files and megabytes per second, the
+ * time from submitting each link to its file being saved, and the peak heap used
+ */
+public class LoadTest {
+    private static final String USAGE = String.join("\n",
+            "Usage: LoadTest [options]",
+            "  --files N            amount of files to serve (default: 200)",
+            "  --size SPEC          file sizes: fixed:SIZE, uniform:MIN-MAX or lognormal:MEDIAN",
+            "                       with sizes such as 64k or 2m (default: lognormal:256k)",
+            "  --latency MILLIS     delay before every response (default: 0)",
+            "  --bandwidth RATE     bytes per second for each response, such as 10m (default: unlimited)",
+            "  --threads LIST       comma separated thread counts to sweep (default: 1,2,4,8,16)",
+            "  --virtual            run tasks on virtual threads",
+            "  --single-request     evaluate and download each file with one GET",
+            "  --runs N             runs for each thread count, the best is reported (default: 2)");
+
+    public static void main(String[] args) throws Exception {
+        Logs.LOG.setConsoleLevel(Level.WARNING);
+        int files = 200, latency = 0, runs = 2;
+        long bandwidth = 0;
+        String size = "lognormal:256k", threads = "1,2,4,8,16";
+        ThreadMode mode = ThreadMode.PLATFORM;
+        boolean singleRequest = false;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--files": files = Integer.parseInt(args[++i]); break;
+                case "--size": size = args[++i]; break;
+                case "--latency": latency = Integer.parseInt(args[++i]); break;
+                case "--bandwidth": bandwidth = parseSize(args[++i]); break;
+                case "--threads": threads = args[++i]; break;
+                case "--virtual": mode = ThreadMode.VIRTUAL; break;
+                case "--single-request": singleRequest = true; break;
+                case "--runs": runs = Integer.parseInt(args[++i]); break;
+                default:
+                    System.err.println(USAGE);
+                    System.exit(2);
+            }
+        }
+
+        long[] sizes = sizes(size, files);
+        try (LoadServer server = new LoadServer(sizes, latency, bandwidth)) {
+            System.out.printf("%d files, %s, %.1f MiB in total, %dms latency, %s per response%n",
+                    files, size, server.getTotalBytes() / (1024.0 * 1024), latency,
+                    bandwidth > 0 ? bandwidth + " B/s" : "unlimited");
+            System.out.printf("%8s %10s %10s %10s %10s %10s %12s%n",
+                    "threads", "files/s", "MiB/s", "p50 ms", "p99 ms", "max ms", "peak heap MiB");
+
+            for (String count : threads.split(",")) {
+                int t = Integer.parseInt(count.trim());
+                Result best = null;
+                for (int r = 0; r < runs; r++) {
+                    Result result = run(server, t, mode, singleRequest);
+                    if (result.downloaded != files)
+                        System.err.println("Only " + result.downloaded + " of " + files + " files were downloaded");
+                    if (best == null || result.nanos < best.nanos)
+                        best = result;
+                }
+                double seconds = best.nanos / 1e9;
+                System.out.printf("%8d %10.1f %10.1f %10.1f %10.1f %10.1f %12.1f%n", t,
+                        best.downloaded / seconds, best.bytes / seconds / (1024 * 1024),
+                        best.latency.get50thPercentileMillis(), best.latency.get99thPercentileMillis(),
+                        best.latency.getMaxMillis(), best.peakHeap / (1024.0 * 1024));
+            }
+        }
+    }
+
+    /**
+     * Crawls the listing and downloads every file it links to into an empty directory
+     */
+    private static Result run(LoadServer server, int threads, ThreadMode mode, boolean singleRequest)
+            throws Exception {
+        File dir = Files.createTempDirectory("ssc-load").toFile();
+        Result result = new Result();
+        Map<URL, Long> submitted = new ConcurrentHashMap<>();
+        AtomicInteger downloaded = new AtomicInteger();
+        AtomicLong bytes = new AtomicLong();
+        CountDownLatch finished = new CountDownLatch(1);
+
+        System.gc();
+        resetPeakHeap();
+        long start = System.nanoTime();
+        try {
+            List<URL> links = WebpageCrawler.parse(server.getListing(), WebpageCrawler.LinkType.Anchor, 30000);
+
+            DownloadPipeline pipeline = new DownloadPipeline(MimeTypeCollection.COMMON_IMAGES,
+                    threads, threads, threads * 4, mode, tasks -> finished.countDown());
+            pipeline.setSingleRequest(singleRequest)
+                    .setKeepResults(false)
+                    .queued(task -> task.done(t -> {
+                        if (t.getState() != DownloadTask.State.COMPLETED)
+                            return;
+                        result.latency.recordSince(submitted.get(t.getURL()));
+                        downloaded.incrementAndGet();
+                        bytes.addAndGet(t.getBytes());
+                    }))
+                    .open();
+            for (URL url : links) {
+                submitted.put(url, System.nanoTime());
+                pipeline.submit(url, dir);
+            }
+            pipeline.close();
+            if (!finished.await(10, TimeUnit.MINUTES))
+                throw new IllegalStateException("The downloads didn't finish");
+
+            result.nanos = System.nanoTime() - start;
+            result.peakHeap = peakHeap();
+            result.downloaded = downloaded.get();
+            result.bytes = bytes.get();
+            return result;
+        } finally {
+            File[] saved = dir.listFiles();
+            if (saved != null)
+                for (File f : saved)
+                    f.delete();
+            dir.delete();
+        }
+    }
+
+    /**
+     * Generates the size of each file from a distribution
+     */
+    private static long[] sizes(String spec, int count) {
+        String[] parts = spec.split(":", 2);
+        if (parts.length != 2)
+            throw new IllegalArgumentException("Invalid size distribution: " + spec);
+        Random random = new Random(count);
+        long[] sizes = new long[count];
+        for (int i = 0; i < count; i++) {
+            switch (parts[0]) {
+                case "fixed":
+                    sizes[i] = parseSize(parts[1]);
+                    break;
+                case "uniform":
+                    String[] bounds = parts[1].split("-", 2);
+                    long min = parseSize(bounds[0]), max = parseSize(bounds[1]);
+                    sizes[i] = min + (long) (random.nextDouble() * (max - min + 1));
+                    break;
+                case "lognormal":
+                    sizes[i] = (long) (parseSize(parts[1]) * Math.exp(random.nextGaussian()));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown size distribution: " + parts[0]);
+            }
+            sizes[i] = Math.max(1, sizes[i]);
+        }
+        return sizes;
+    }
+
+    /**
+     * Parses an amount of bytes, with an optional k, m or g suffix
+     */
+    private static long parseSize(String size) {
+        size = size.trim().toLowerCase();
+        int shift = 0;
+        switch (size.charAt(size.length() - 1)) {
+            case 'k': shift = 10; break;
+            case 'm': shift = 20; break;
+            case 'g': shift = 30; break;
+        }
+        if (shift > 0)
+            size = size.substring(0, size.length() - 1);
+        return Long.parseLong(size) << shift;
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                pool.resetPeakUsage();
+    }
+
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+        return peak;
+    }
+
+    private static class Result {
+        private final Histogram latency = new Histogram();
+        private long nanos, bytes, peakHeap;
+        private int downloaded;
+    }
+}
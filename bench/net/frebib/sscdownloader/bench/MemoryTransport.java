@@ -0,0 +1,90 @@
+package net.frebib.sscdownloader.bench;
+
+import net.frebib.sscdownloader.http.Response;
+import net.frebib.sscdownloader.http.Transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A {@link Transport} that answers from memory, so the benchmarks measure
+ * the code handling the responses rather than the network
+ */
+public class MemoryTransport implements Transport {
+    private final Map<String, Resource> resources = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a file that is served for a link
+     * @param url the link
+     * @param contentType the {@code Content-Type} it is served with
+     * @param body the content
+     * @return the MemoryTransport instance, for command chaining
+     */
+    public MemoryTransport put(URL url, String contentType, byte[] body) {
+        resources.put(url.toString(), new Resource(contentType, body));
+        return this;
+    }
+
+    @Override
+    public Response send(String method, URL url, Map<String, String> headers, int timeoutMillis)
+            throws FileNotFoundException {
+        Resource resource = resources.get(url.toString());
+        if (resource == null)
+            throw new FileNotFoundException(url.toString());
+        return new MemoryResponse(url, resource, !method.equals("HEAD"));
+    }
+
+    private static class Resource {
+        private final String contentType, length;
+        private final byte[] body;
+
+        Resource(String contentType, byte[] body) {
+            this.contentType = contentType;
+            this.length = Integer.toString(body.length);
+            this.body = body;
+        }
+    }
+
+    private static class MemoryResponse implements Response {
+        private final URL url;
+        private final Resource resource;
+        private final boolean hasBody;
+
+        MemoryResponse(URL url, Resource resource, boolean hasBody) {
+            this.url = url;
+            this.resource = resource;
+            this.hasBody = hasBody;
+        }
+
+        @Override
+        public int getStatus() {
+            return 200;
+        }
+
+        @Override
+        public URL getURL() {
+            return url;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            if (name.equalsIgnoreCase("Content-Type"))
+                return resource.contentType;
+            if (name.equalsIgnoreCase("Content-Length"))
+                return resource.length;
+            return null;
+        }
+
+        @Override
+        public InputStream getBody() {
+            return new ByteArrayInputStream(hasBody ? resource.body : new byte[0]);
+        }
+
+        @Override
+        public void close() { }
+    }
+}
@@ -0,0 +1,104 @@
+package net.frebib.sscdownloader.bench;
+
+import net.frebib.sscdownloader.MimeType;
+import net.frebib.sscdownloader.MimeTypeCollection;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures the rate {@link MimeTypeCollection} filters the {@code Content-Type}
+ * of evaluated links at, against scanning every {@link MimeType} with
+ * {@link MimeType#matches(String)} as it used to. The index should stay flat
+ * as the collection grows, while the scan grows with it. Checking a single
+ * {@link MimeType} is measured first, for comparison
+ */
+public class MimeTypeCollectionBenchmark {
+    private static final int[] SIZES = { 5, 50, 500 };
+    private static final int LOOKUPS = 100_000;
+    private static final String[] CONTENT_TYPES = {
+            "image/jpeg", "image/png", "text/html; charset=UTF-8", "text/html;charset=iso-8859-1",
+            "application/octet-stream", "audio/ogg; codecs=vorbis", "image/webp", "IMAGE/GIF"
+    };
+    private static final String[] EXTENSIONS = { "jpg", "png", "html", "bin", "ogg", "webp", "gif", "ext7" };
+
+    public static void main(String[] args) {
+        single();
+        for (int size : SIZES) {
+            MimeTypeCollection mimes = collection(size);
+            String[] lookups = new Random(size).ints(LOOKUPS, 0, CONTENT_TYPES.length)
+                    .mapToObj(i -> CONTENT_TYPES[i])
+                    .toArray(String[]::new);
+
+            Bench.report("MimeTypeCollection.hasMime", size, Bench.nanosPerOp(LOOKUPS, () -> {
+                long hits = 0;
+                for (String type : lookups)
+                    if (mimes.hasMime(type))
+                        hits++;
+                return hits;
+            }));
+            Bench.report("MimeTypeCollection.hasExtension", size, Bench.nanosPerOp(LOOKUPS, () -> {
+                long hits = 0;
+                for (int i = 0; i < LOOKUPS; i++)
+                    if (mimes.hasExtension(EXTENSIONS[i & 7]))
+                        hits++;
+                return hits;
+            }));
+            Bench.report("MimeTypeCollection.getMimeType", size, Bench.nanosPerOp(LOOKUPS, () -> {
+                long hits = 0;
+                for (String type : lookups)
+                    if (mimes.getMimeType(type) != null)
+                        hits++;
+                return hits;
+            }));
+            // Fewer lookups, since every one runs the regex against every type
+            String[] scans = Arrays.copyOf(lookups, Math.max(1_000, LOOKUPS / size));
+            Bench.report("MimeType.matches scan", size, Bench.nanosPerOp(scans.length, () -> {
+                long hits = 0;
+                for (String type : scans)
+                    if (mimes.getMimes().stream().anyMatch(m -> m.matches(type)))
+                        hits++;
+                return hits;
+            }));
+        }
+    }
+
+    /**
+     * Measures checking a single {@link MimeType}, which doesn't depend on the size of a collection
+     */
+    private static void single() {
+        MimeType jpeg = new MimeType("image/jpeg", "jpg"), images = new MimeType("image/*");
+        Bench.report("MimeType.isValid", "", Bench.nanosPerOp(LOOKUPS, () -> {
+            long valid = 0;
+            for (int i = 0; i < LOOKUPS; i++)
+                if (MimeType.isValid(CONTENT_TYPES[i & 7]))
+                    valid++;
+            return valid;
+        }));
+        Bench.report("MimeType.matches exact", "", Bench.nanosPerOp(LOOKUPS, () -> {
+            long hits = 0;
+            for (int i = 0; i < LOOKUPS; i++)
+                if (jpeg.matches(CONTENT_TYPES[i & 7]))
+                    hits++;
+            return hits;
+        }));
+        Bench.report("MimeType.matches wildcard", "", Bench.nanosPerOp(LOOKUPS, () -> {
+            long hits = 0;
+            for (int i = 0; i < LOOKUPS; i++)
+                if (images.matches(CONTENT_TYPES[i & 7]))
+                    hits++;
+            return hits;
+        }));
+    }
+
+    /**
+     * Builds a collection of made up types around the common images, with a wildcard at the end
+     */
+    private static MimeTypeCollection collection(int size) {
+        MimeTypeCollection mimes = new MimeTypeCollection();
+        mimes.addAll(MimeTypeCollection.COMMON_IMAGES.getMimes());
+        for (int i = mimes.getMimes().size(); i < size - 1; i++)
+            mimes.add(new MimeType("application/x-type" + (char) ('a' + i % 26) + (char) ('a' + i / 26), "ext" + i));
+        return mimes.add(new MimeType("audio/*"));
+    }
+}
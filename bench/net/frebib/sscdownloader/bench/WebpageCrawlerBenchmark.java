@@ -0,0 +1,45 @@
+package net.frebib.sscdownloader.bench;
+
+import net.frebib.sscdownloader.WebpageCrawler;
+import net.frebib.sscdownloader.WebpageCrawler.LinkType;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+
+/**
+ * Measures the rate {@link WebpageCrawler#parse(Document, LinkType)} pulls links out
+ * of a directory listing at, as the listing grows. Parsing the HTML with jsoup is
+ * measured separately, since it happens before the links are looked for
+ */
+public class WebpageCrawlerBenchmark {
+    private static final int[] SIZES = { 1_000, 10_000, 100_000 };
+    private static final String LOCATION = "http://localhost/files/";
+
+    public static void main(String[] args) {
+        for (int size : SIZES) {
+            String html = listing(size);
+            Document doc = Jsoup.parse(html, LOCATION);
+            // Every file has a link and a thumbnail, and there is a link to the parent
+            int links = size * 2 + 1;
+
+            Bench.report("Jsoup.parse listing (per link)", size, Bench.nanosPerOp(links, () ->
+                    Jsoup.parse(html, LOCATION).getAllElements().size()));
+            for (LinkType type : LinkType.values())
+                Bench.report("WebpageCrawler.parse " + type + " (per link)", size, Bench.nanosPerOp(links, () ->
+                        WebpageCrawler.parse(doc, type).size()));
+        }
+    }
+
+    /**
+     * Builds a page like the index of a directory, with a link and a thumbnail for every file
+     */
+    private static String listing(int size) {
+        StringBuilder sb = new StringBuilder(size * 120);
+        sb.append("<html><head><title>Index of /files/</title></head><body><h1>Index of /files/</h1>")
+          .append("<table><tr><td><a href=\"../\">Parent Directory</a></td></tr>");
+        for (int i = 0; i < size; i++)
+            sb.append("<tr><td><img src=\"/thumbs/").append(i).append(".png\" alt=\"\"></td>")
+              .append("<td><a href=\"file-").append(i).append(".jpg\">file-").append(i).append(".jpg</a></td>")
+              .append("<td>").append(i * 37 % 100_000).append("K</td></tr>");
+        return sb.append("</table></body></html>").toString();
+    }
+}
@@ -0,0 +1,100 @@
+package net.frebib.sscdownloader;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A token bucket that limits the rate bytes can be transferred at.
+ * Instead of a shared counter that every thread polls, each caller
+ * atomically reserves its own slot on a timeline and sleeps until then,
+ * so waiting threads are served in order and wake one at a time.
+ * Waiting threads check for rate changes at least every {@value #SLICE_MILLIS}ms,
+ * so raising or removing the limit frees them straight away
+ */
+public class BandwidthLimiter {
+    /**
+     * The limiter that every {@link DownloadTask} passes through. Unlimited by default
+     */
+    public static final BandwidthLimiter GLOBAL = new BandwidthLimiter(0);
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+    private static final long BURST_NANOS = NANOS_PER_SECOND / 4;
+    private static final long SLICE_MILLIS = 50;
+    private static final long SLICE_NANOS = SLICE_MILLIS * 1_000_000L;
+
+    private final AtomicLong nextFree;
+    private volatile long bytesPerSecond;
+    private volatile int generation;
+
+    /**
+     * Creates a new limiter
+     * @param bytesPerSecond the maximum rate, or 0 for no limit
+     */
+    public BandwidthLimiter(long bytesPerSecond) {
+        this.nextFree = new AtomicLong(System.nanoTime());
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+    }
+
+    /**
+     * Takes tokens for the bytes transferred, waiting until
+     * they are available if the limit has been reached.
+     * Callers may run up to a quarter of a second ahead of the limit before waiting
+     * @param bytes amount of bytes transferred
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        while (bytes > 0) {
+            int gen = generation;
+            long rate = bytesPerSecond;
+            if (rate <= 0)
+                return;
+
+            long cost = bytes * NANOS_PER_SECOND / rate;
+            long now = System.nanoTime(), prev, next;
+            do {
+                prev = nextFree.get();
+                next = Math.max(prev, now) + cost;
+            } while (!nextFree.compareAndSet(prev, next));
+
+            long deadline = next - BURST_NANOS;
+            bytes = 0;
+            for (long wait = deadline - now; wait > 0; wait = deadline - System.nanoTime()) {
+                if (gen != generation) {
+                    // The rate changed, so wait for what is still owed at the new rate instead
+                    bytes = Math.min(cost, wait) * rate / NANOS_PER_SECOND;
+                    break;
+                }
+                LockSupport.parkNanos(this, Math.min(wait, SLICE_NANOS));
+                if (Thread.interrupted())
+                    throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Changes the rate limit. Takes effect straight away, including for threads
+     * that are already waiting, which recompute their wait at the new rate
+     * @param bytesPerSecond the maximum rate, or 0 for no limit
+     */
+    public void setRate(long bytesPerSecond) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        // Forget reservations made at the old rate
+        long now = System.nanoTime();
+        nextFree.accumulateAndGet(now, Math::min);
+        generation++;
+    }
+
+    /**
+     * Gets the rate limit in bytes per second, or 0 if unlimited
+     */
+    public long getRate() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Gets whether the limiter restricts the transfer rate
+     */
+    public boolean isLimited() {
+        return bytesPerSecond > 0;
+    }
+}
@@ -0,0 +1,115 @@
+package net.frebib.sscdownloader;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A shared pool of reusable {@link ByteBuffer}s in power-of-two size
+ * classes, so that copying data doesn't allocate a buffer for every read
+ */
+public class BufferPool {
+    /**
+     * The smallest buffer that is handed out, in bytes
+     */
+    public static final int MIN_SIZE = 8 * 1024;
+    /**
+     * The largest buffer that is handed out, in bytes
+     */
+    public static final int MAX_SIZE = 1024 * 1024;
+
+    private static final int MAX_POOLED = 64;
+    private static final BufferPool SHARED = new BufferPool();
+
+    private final SizeClass[] pools;
+    private volatile boolean direct;
+
+    /**
+     * Creates an empty pool of heap buffers
+     */
+    public BufferPool() {
+        pools = new SizeClass[indexOf(MAX_SIZE) + 1];
+        for (int i = 0; i < pools.length; i++)
+            pools[i] = new SizeClass();
+    }
+
+    /**
+     * Gets the pool shared by all {@link DownloadTask}s
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Takes a cleared buffer from the pool, allocating one if the pool is empty
+     * @param size minimum capacity of the buffer, rounded up to a power of two
+     *             and clamped between {@link #MIN_SIZE} and {@link #MAX_SIZE}
+     * @return a buffer that should be given back with {@link #release(ByteBuffer)}
+     */
+    public ByteBuffer acquire(int size) {
+        int index = indexOf(size);
+        ByteBuffer buf = pools[index].buffers.poll();
+        if (buf == null) {
+            int capacity = MIN_SIZE << index;
+            return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        pools[index].count.decrementAndGet();
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Gives a buffer back to the pool so it can be reused. Buffers
+     * not acquired from a pool, or beyond the pool limit, are dropped
+     * @param buf the buffer to release
+     */
+    public void release(ByteBuffer buf) {
+        if (buf == null || buf.isDirect() != direct)
+            return;
+        int index = indexOf(buf.capacity());
+        if (MIN_SIZE << index != buf.capacity())
+            return;
+        SizeClass pool = pools[index];
+        if (pool.count.incrementAndGet() > MAX_POOLED) {
+            pool.count.decrementAndGet();
+            return;
+        }
+        pool.buffers.offer(buf);
+    }
+
+    /**
+     * Sets whether new buffers are allocated outside of the heap. Direct buffers
+     * avoid a copy when writing to a channel but are more expensive to allocate
+     * @param direct true to allocate direct buffers
+     */
+    public void setDirect(boolean direct) {
+        if (this.direct == direct)
+            return;
+        this.direct = direct;
+        for (SizeClass pool : pools) {
+            pool.buffers.clear();
+            pool.count.set(0);
+        }
+    }
+
+    /**
+     * Gets whether new buffers are allocated outside of the heap
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    private static int indexOf(int size) {
+        int capacity = Math.max(MIN_SIZE, Math.min(MAX_SIZE, size));
+        int pow = 32 - Integer.numberOfLeadingZeros(capacity - 1);
+        return pow - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    /**
+     * The pooled buffers of one size, with a count that is cheaper to read than the queue's size
+     */
+    private static class SizeClass {
+        private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger count = new AtomicInteger();
+    }
+}
@@ -0,0 +1,239 @@
+package net.frebib.sscdownloader;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the content hash of every file downloaded into a directory, so a
+ * file that has already been downloaded under another link isn't stored twice.
+ * Files are identified by the SHA-256 of their content, and also by their size
+ * and the hash of their first {@link #PREFIX_SIZE} bytes so a duplicate can be
+ * recognised before the rest of it is downloaded. The index is kept in a
+ * {@value #INDEX_NAME} file in the directory, one line per file
+ */
+public class ContentIndex {
+    /**
+     * The amount of bytes at the start of a file that are hashed to recognise it early
+     */
+    public static final int PREFIX_SIZE = 64 * 1024;
+    /**
+     * The name of the file the index is kept in
+     */
+    public static final String INDEX_NAME = ".ssc-index";
+
+    private static final Map<File, ContentIndex> INDEXES = new ConcurrentHashMap<>();
+    private static volatile Mode mode = Mode.OFF;
+    private static volatile boolean earlyAbort;
+
+    private final File dir, indexFile;
+    private final Map<String, Entry> byHash, byPrefix;
+    private boolean loaded;
+
+    private ContentIndex(File dir) {
+        this.dir = dir;
+        this.indexFile = new File(dir, INDEX_NAME);
+        this.byHash = new HashMap<>();
+        this.byPrefix = new HashMap<>();
+    }
+
+    /**
+     * Gets the index of a directory, shared by every download into it
+     * @param dir the directory
+     * @return the index
+     */
+    public static ContentIndex forDirectory(File dir) {
+        return INDEXES.computeIfAbsent(dir.getAbsoluteFile(), ContentIndex::new);
+    }
+
+    /**
+     * Gets what is done with files that have already been downloaded
+     */
+    public static Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Sets what is done with files that have already been downloaded. Off by default
+     * @param mode the mode
+     */
+    public static void setMode(Mode mode) {
+        ContentIndex.mode = mode;
+    }
+
+    /**
+     * Gets whether a download is stopped once its first bytes match a known file
+     */
+    public static boolean isEarlyAbort() {
+        return earlyAbort;
+    }
+
+    /**
+     * Sets whether a download is stopped as soon as its size and first {@link #PREFIX_SIZE}
+     * bytes match a known file, instead of downloading all of it to compare the whole hash.
+     * The last {@link #PREFIX_SIZE} bytes are fetched and compared first, but anything in
+     * between is trusted to be the same, so it is off by default
+     * @param earlyAbort true to stop downloads early
+     */
+    public static void setEarlyAbort(boolean earlyAbort) {
+        ContentIndex.earlyAbort = earlyAbort;
+    }
+
+    /**
+     * Finds a file with the same content
+     * @param hash SHA-256 of the content
+     * @param size length of the content
+     * @return the file, or null if there isn't one
+     */
+    public synchronized File find(byte[] hash, long size) {
+        return check(byHash, toHex(hash), size);
+    }
+
+    /**
+     * Finds a file that starts with the same content
+     * @param prefixHash SHA-256 of the first {@link #PREFIX_SIZE} bytes
+     * @param size length of the content
+     * @return the file, or null if there isn't one
+     */
+    public synchronized File findPrefix(byte[] prefixHash, long size) {
+        return check(byPrefix, prefixKey(toHex(prefixHash), size), size);
+    }
+
+    /**
+     * Records the content of a file
+     * @param file the file, in the directory of the index
+     * @param hash SHA-256 of the content
+     * @param prefixHash SHA-256 of the first {@link #PREFIX_SIZE} bytes
+     * @param size length of the content
+     */
+    public synchronized void put(File file, byte[] hash, byte[] prefixHash, long size) {
+        load();
+        Entry entry = new Entry(file.getName(), toHex(hash), toHex(prefixHash), size);
+        add(entry);
+        try (Writer out = Files.newBufferedWriter(indexFile.toPath(), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+            out.write(entry.hash + "\t" + entry.size + "\t" + entry.prefix + "\t" + entry.name + "\n");
+        } catch (IOException e) {
+            Logs.LOG.warning("Unable to update content index " + indexFile + ": " + e.getMessage());
+        }
+    }
+
+    private File check(Map<String, Entry> map, String key, long size) {
+        load();
+        Entry entry = map.get(key);
+        if (entry == null)
+            return null;
+        File file = new File(dir, entry.name);
+        if (file.isFile() && file.length() == size)
+            return file;
+        map.remove(key);    // The file has been changed or deleted since
+        return null;
+    }
+
+    private void load() {
+        if (loaded)
+            return;
+        loaded = true;
+        if (!indexFile.isFile())
+            return;
+        try (BufferedReader in = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+            for (String line; (line = in.readLine()) != null; ) {
+                String[] parts = line.split("\t", 4);
+                if (parts.length == 4)
+                    add(new Entry(parts[3], parts[0], parts[2], Long.parseLong(parts[1])));
+            }
+            Logs.LOG.fine("Loaded content index of " + dir + " with " + byHash.size() + " files");
+        } catch (IOException | NumberFormatException e) {
+            Logs.LOG.warning("Ignoring unreadable content index " + indexFile + ": " + e.getMessage());
+        }
+    }
+
+    private void add(Entry entry) {
+        byHash.put(entry.hash, entry);
+        byPrefix.put(prefixKey(entry.prefix, entry.size), entry);
+    }
+
+    private static String prefixKey(String prefixHash, long size) {
+        return size + ":" + prefixHash;
+    }
+
+    /**
+     * Creates a digest for hashing file content
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * Hashes a file that is already on disk, for downloads that weren't hashed as they were written
+     * @param file the file
+     * @return the SHA-256 of the whole file, then of its first {@link #PREFIX_SIZE} bytes
+     * @throws IOException if the file can't be read
+     */
+    public static byte[][] hash(File file) throws IOException {
+        MessageDigest full = newDigest(), prefix = newDigest();
+        byte[] buf = new byte[64 * 1024];
+        long read = 0;
+        try (InputStream in = new FileInputStream(file)) {
+            for (int count; (count = in.read(buf)) != -1; read += count) {
+                full.update(buf, 0, count);
+                if (read < PREFIX_SIZE)
+                    prefix.update(buf, 0, (int) Math.min(count, PREFIX_SIZE - read));
+            }
+        }
+        return new byte[][] { full.digest(), prefix.digest() };
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(Character.forDigit(b >> 4 & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        return sb.toString();
+    }
+
+    /**
+     * What is done with a file whose content has already been downloaded
+     */
+    public enum Mode {
+        /**
+         * Files aren't hashed, and duplicates are stored as separate copies
+         */
+        OFF,
+        /**
+         * The duplicate is saved as a hard link to the file already downloaded,
+         * or as a separate copy if the file system doesn't support links
+         */
+        HARDLINK,
+        /**
+         * The duplicate isn't saved at all
+         */
+        SKIP
+    }
+
+    private static class Entry {
+        private final String name, hash, prefix;
+        private final long size;
+
+        Entry(String name, String hash, String prefix, long size) {
+            this.name = name;
+            this.hash = hash;
+            this.prefix = prefix;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package net.frebib.sscdownloader;
+
+/**
+ * Works out the type of a file from its first bytes, for servers that don't send a
+ * {@code Content-Type} or send a generic one such as {@code application/octet-stream}.
+ * Common formats are recognised by the signatures at the start of the file
+ */
+public final class ContentSniffer {
+    /**
+     * The amount of bytes at the start of a file needed to recognise it
+     */
+    public static final int SNIFF_SIZE = 512;
+
+    private static final int ANY = -1;
+
+    private static final Signature[] SIGNATURES = {
+            new Signature("image/png",  0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A),
+            new Signature("image/jpeg", 0xFF, 0xD8, 0xFF),
+            new Signature("image/gif",  'G', 'I', 'F', '8', '7', 'a'),
+            new Signature("image/gif",  'G', 'I', 'F', '8', '9', 'a'),
+            new Signature("image/bmp",  'B', 'M'),
+            new Signature("image/tiff", 'I', 'I', 0x2A, 0x00),
+            new Signature("image/tiff", 'M', 'M', 0x00, 0x2A),
+            new Signature("image/webp", 'R', 'I', 'F', 'F', ANY, ANY, ANY, ANY, 'W', 'E', 'B', 'P'),
+            new Signature("audio/wav",  'R', 'I', 'F', 'F', ANY, ANY, ANY, ANY, 'W', 'A', 'V', 'E'),
+            new Signature("audio/flac", 'f', 'L', 'a', 'C'),
+            new Signature("audio/ogg",  'O', 'g', 'g', 'S', 0x00),
+            new Signature("audio/mpeg", 'I', 'D', '3'),
+            new Signature("application/pdf", '%', 'P', 'D', 'F', '-'),
+            new Signature("application/zip", 'P', 'K', 0x03, 0x04),
+            new Signature("application/zip", 'P', 'K', 0x05, 0x06),
+            new Signature("application/zip", 'P', 'K', 0x07, 0x08),
+    };
+
+    private static final String[] HTML_TAGS = {
+            "!doctype html", "html", "head", "body", "script", "iframe", "h1", "div", "font",
+            "table", "a", "style", "title", "b", "br", "p", "!--"
+    };
+
+    private static final String[] GENERIC_TYPES = {
+            "application/octet-stream", "binary/octet-stream", "application/unknown",
+            "application/x-unknown", "unknown/unknown", "application/force-download",
+            "application/download", "application/x-download"
+    };
+
+    private ContentSniffer() { }
+
+    /**
+     * Gets whether a {@code Content-Type} says nothing about what a file is
+     * @param contentType the header, with any parameters, or null if it wasn't sent
+     * @return true if the type should be worked out from the content instead
+     */
+    public static boolean isGeneric(String contentType) {
+        if (contentType == null)
+            return true;
+        int semi = contentType.indexOf(';');
+        String type = (semi < 0 ? contentType : contentType.substring(0, semi)).trim();
+        if (type.isEmpty() || !MimeType.isValid(type))
+            return true;
+        for (String generic : GENERIC_TYPES)
+            if (generic.equalsIgnoreCase(type))
+                return true;
+        return false;
+    }
+
+    /**
+     * Recognises a file from its first bytes
+     * @param buf the bytes
+     * @param len amount of bytes in {@code buf}, ideally {@link #SNIFF_SIZE}
+     * @return the mimetype of the file, or null if it isn't recognised
+     */
+    public static String sniff(byte[] buf, int len) {
+        for (Signature sig : SIGNATURES)
+            if (sig.matches(buf, len))
+                return sig.mime;
+        if (isMpegFrame(buf, len))
+            return "audio/mpeg";
+        if (isHtml(buf, len))
+            return "text/html";
+        return null;
+    }
+
+    /**
+     * Checks for the frame sync of an MP3 without an ID3 tag
+     */
+    private static boolean isMpegFrame(byte[] buf, int len) {
+        if (len < 3 || (buf[0] & 0xFF) != 0xFF || (buf[1] & 0xE0) != 0xE0)
+            return false;
+        int version = buf[1] >> 3 & 3, layer = buf[1] >> 1 & 3, bitrate = (buf[2] & 0xFF) >> 4;
+        return version != 1 && layer != 0 && bitrate != 0 && bitrate != 15;
+    }
+
+    /**
+     * Checks whether the first tag, after any whitespace, is one that starts a web page
+     */
+    private static boolean isHtml(byte[] buf, int len) {
+        int i = 0;
+        if (len >= 3 && (buf[0] & 0xFF) == 0xEF && (buf[1] & 0xFF) == 0xBB && (buf[2] & 0xFF) == 0xBF)
+            i = 3;  // UTF-8 byte order mark
+        while (i < len && (buf[i] == ' ' || buf[i] == '\t' || buf[i] == '\n' || buf[i] == '\r' || buf[i] == '\f'))
+            i++;
+        if (i >= len || buf[i] != '<')
+            return false;
+
+        for (String tag : HTML_TAGS) {
+            int end = i + 1 + tag.length();
+            if (end >= len)
+                continue;
+            boolean match = true;
+            for (int j = 0; j < tag.length() && match; j++)
+                match = Character.toLowerCase((char) buf[i + 1 + j]) == tag.charAt(j);
+            // A tag name has to end there, though a comment doesn't
+            if (match && (tag.equals("!--") || buf[end] == ' ' || buf[end] == '>'))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * The bytes a format starts with, where {@link #ANY} matches any byte
+     */
+    private static class Signature {
+        private final String mime;
+        private final int[] magic;
+
+        Signature(String mime, int... magic) {
+            this.mime = mime;
+            this.magic = magic;
+        }
+
+        boolean matches(byte[] buf, int len) {
+            if (len < magic.length)
+                return false;
+            for (int i = 0; i < magic.length; i++)
+                if (magic[i] != ANY && (buf[i] & 0xFF) != magic[i])
+                    return false;
+            return true;
+        }
+    }
+}
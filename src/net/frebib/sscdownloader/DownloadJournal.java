@@ -0,0 +1,288 @@
+package net.frebib.sscdownloader;
+
+import net.frebib.sscdownloader.http.Response;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A small sidecar file that records how much of a partially downloaded file
+ * has been written to disk, along with the validators of the response it came
+ * from, so that an interrupted {@link DownloadTask} can be resumed
+ */
+public class DownloadJournal {
+    private static final long SAVE_INTERVAL = 1024 * 1024;
+    private static final Pattern CONTENT_RANGE = Pattern.compile("\\s*bytes\\s+(\\d+)-(\\d+)/(\\d+)\\s*");
+
+    private final File file;
+    private final URL url;
+    private final String etag, lastModified;
+    private final long size;
+    private final List<Segment> segments;
+    private final AtomicLong unsaved;
+
+    /**
+     * Creates a new, empty journal for a download
+     * @param file location of the journal file
+     * @param url link the file is fetched from
+     * @param etag the {@code ETag} header of the response, or null
+     * @param lastModified the {@code Last-Modified} header of the response, or null
+     * @param size the full length of the file in bytes
+     */
+    public DownloadJournal(File file, URL url, String etag, String lastModified, long size) {
+        this.file = file;
+        this.url = url;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.size = size;
+        this.segments = new ArrayList<>();
+        this.unsaved = new AtomicLong();
+    }
+
+    /**
+     * Creates a journal from the headers of a response
+     * @param file location of the journal file
+     * @param url link the file was requested from
+     * @param res the response the file is being fetched from
+     * @param size the full length of the file in bytes
+     * @return a new journal with no segments
+     */
+    public static DownloadJournal fromResponse(File file, URL url, Response res, long size) {
+        return new DownloadJournal(file, url, res.getHeader("ETag"),
+                res.getHeader("Last-Modified"), size);
+    }
+
+    /**
+     * Reads a journal from disk
+     * @param file location of the journal file
+     * @param url link the file is expected to be fetched from
+     * @return the journal, or null if it doesn't exist, can't be read
+     *         or was written for a different {@link URL}
+     */
+    public static DownloadJournal load(File file, URL url) {
+        if (!file.isFile())
+            return null;
+
+        Properties props = new Properties();
+        try (InputStream is = new FileInputStream(file)) {
+            props.load(is);
+
+            if (!url.toString().equals(props.getProperty("url")))
+                return null;
+
+            DownloadJournal journal = new DownloadJournal(file, url, props.getProperty("etag"),
+                    props.getProperty("lastModified"), Long.parseLong(props.getProperty("size")));
+            int count = Integer.parseInt(props.getProperty("segments"));
+            for (int i = 0; i < count; i++) {
+                String[] parts = props.getProperty("segment." + i).split(",");
+                journal.segments.add(new Segment(Long.parseLong(parts[0]),
+                        Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+            }
+            return journal;
+        } catch (Exception e) {
+            Logs.LOG.warning("Ignoring unreadable journal " + file.getName() + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Splits the file into {@code count} equally sized segments, the last taking any remainder
+     * @param count amount of segments
+     * @return the DownloadJournal instance, for command chaining
+     */
+    public DownloadJournal split(int count) {
+        segments.clear();
+        long segSize = size / count;
+        for (int i = 0; i < count; i++) {
+            long start = i * segSize;
+            segments.add(new Segment(start, i == count - 1 ? size : start + segSize, 0));
+        }
+        return this;
+    }
+
+    /**
+     * Gets whether a response to a range request continues a segment of this journal,
+     * that is the server honoured the {@code If-Range} validator, the file is still the
+     * same length and the range sent starts where the segment left off
+     * @param res the response to the range request
+     * @param segment the segment that was requested
+     * @return true if the response is partial content of the same file, from the segment's position
+     * @throws IOException if the response can't be read
+     */
+    public boolean isContinuedBy(Response res, Segment segment) throws IOException {
+        if (res.getStatus() != HttpURLConnection.HTTP_PARTIAL)
+            return false;
+        Matcher m = CONTENT_RANGE.matcher(String.valueOf(res.getHeader("Content-Range")));
+        if (!m.matches())
+            return false;
+        try {
+            long start = Long.parseLong(m.group(1)), end = Long.parseLong(m.group(2));
+            return start == segment.getPosition() && end >= start && Long.parseLong(m.group(3)) == size;
+        } catch (NumberFormatException e) {
+            return false;   // Too long for a long
+        }
+    }
+
+    /**
+     * Gets a validator that can be sent in an {@code If-Range} header.
+     * Weak entity tags can't be used for ranges so the modification date is preferred
+     * @return the validator, or null if the response had none that can be used
+     */
+    public String getValidator() {
+        if (etag != null && !etag.startsWith("W/"))
+            return etag;
+        return lastModified;
+    }
+
+    /**
+     * Gets the first segment that hasn't been completely written
+     * @return the segment, or null if the download is complete
+     */
+    public Segment firstIncomplete() {
+        return segments.stream()
+                .filter(s -> s.getRemaining() > 0)
+                .findFirst()
+                .orElse(null);
+    }
+
+    /**
+     * Records that some bytes have been written, and periodically saves the journal
+     * @param count amount of bytes written since the last call
+     */
+    public void committed(long count) {
+        if (unsaved.addAndGet(count) >= SAVE_INTERVAL) {
+            unsaved.set(0);
+            save();
+        }
+    }
+
+    /**
+     * Writes the journal to disk, replacing the previous copy atomically
+     */
+    public synchronized void save() {
+        Properties props = new Properties();
+        props.setProperty("url", url.toString());
+        if (etag != null)
+            props.setProperty("etag", etag);
+        if (lastModified != null)
+            props.setProperty("lastModified", lastModified);
+        props.setProperty("size", Long.toString(size));
+        props.setProperty("segments", Integer.toString(segments.size()));
+        for (int i = 0; i < segments.size(); i++) {
+            Segment s = segments.get(i);
+            props.setProperty("segment." + i, s.getStart() + "," + s.getEnd() + "," + s.getDone());
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (OutputStream os = new FileOutputStream(tmp)) {
+            props.store(os, null);
+        } catch (IOException e) {
+            Logs.LOG.exception(e);
+            return;
+        }
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Logs.LOG.exception(e);
+        }
+    }
+
+    /**
+     * Removes the journal from disk
+     */
+    public void delete() {
+        if (file.exists() && !file.delete())
+            Logs.LOG.warning("Unable to delete journal " + file.getName());
+    }
+
+    /**
+     * Gets the amount of bytes committed across all segments
+     */
+    public long getCommitted() {
+        return segments.stream().mapToLong(Segment::getDone).sum();
+    }
+
+    /**
+     * Gets the segments the file is split into
+     */
+    public List<Segment> getSegments() {
+        return segments;
+    }
+
+    /**
+     * Gets the full length of the file in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * A byte range {@code [start, end)} of the file and how much of it has been written
+     */
+    public static class Segment {
+        private final long start, end;
+        private final AtomicLong done;
+
+        public Segment(long start, long end, long done) {
+            this.start = start;
+            this.end = end;
+            this.done = new AtomicLong(done);
+        }
+
+        /**
+         * Records that bytes have been written to the segment
+         * @param count amount of bytes written
+         */
+        public void advance(long count) {
+            done.addAndGet(count);
+        }
+
+        /**
+         * Gets a {@code Range} header value that requests the remainder of the segment
+         */
+        public String toRangeHeader() {
+            return "bytes=" + getPosition() + "-" + (end - 1);
+        }
+
+        /**
+         * Gets the offset in the file of the next byte to be written
+         */
+        public long getPosition() {
+            return start + done.get();
+        }
+
+        /**
+         * Gets the amount of bytes left to write
+         */
+        public long getRemaining() {
+            return end - getPosition();
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        public long getDone() {
+            return done.get();
+        }
+    }
+}
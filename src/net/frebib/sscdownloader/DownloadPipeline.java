@@ -0,0 +1,243 @@
+package net.frebib.sscdownloader;
+
+import net.frebib.sscdownloader.concurrent.BatchExecutor;
+import net.frebib.sscdownloader.concurrent.Completion;
+import net.frebib.sscdownloader.concurrent.ThreadMode;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Evaluates links and downloads the accepted files in a single pass. Each
+ * {@link DownloadTask} is queued for download as soon as its link has been
+ * evaluated, instead of waiting for every link to be evaluated first.
+ * The amount of tasks waiting to download is bounded, so evaluation
+ * stalls when it gets too far ahead of the downloads
+ */
+public class DownloadPipeline {
+    private final FileEvaluator eval;
+    private final BatchExecutor<DownloadTask, DownloadTask> downloader;
+    private final Semaphore capacity;
+    private final List<Completion<DownloadTask>> queued;
+    private boolean singleRequest;
+
+    /**
+     * Creates a new DownloadPipeline
+     * @param mimes {@link MimeTypeCollection} to filter links with
+     * @param evalThreads amount of threads evaluating links
+     * @param downloadThreads amount of threads downloading files
+     * @param queueSize maximum amount of evaluated files waiting to download
+     * @param done a {@link Completion} callback that is called when every
+     *             link has been evaluated and every accepted file downloaded
+     */
+    public DownloadPipeline(MimeTypeCollection mimes, int evalThreads, int downloadThreads,
+                            int queueSize, Completion<List<DownloadTask>> done) {
+        this(mimes, evalThreads, downloadThreads, queueSize, ThreadMode.PLATFORM, done);
+    }
+
+    /**
+     * Creates a new DownloadPipeline that runs both stages on a kind of thread
+     * @param mimes {@link MimeTypeCollection} to filter links with
+     * @param evalThreads amount of links evaluated at once
+     * @param downloadThreads amount of files downloaded at once
+     * @param queueSize maximum amount of evaluated files waiting to download
+     * @param mode the kind of threads to run tasks on
+     * @param done a {@link Completion} callback that is called when every
+     *             link has been evaluated and every accepted file downloaded
+     */
+    public DownloadPipeline(MimeTypeCollection mimes, int evalThreads, int downloadThreads,
+                            int queueSize, ThreadMode mode, Completion<List<DownloadTask>> done) {
+        this.capacity = new Semaphore(downloadThreads + queueSize);
+        this.queued = new ArrayList<>();
+        this.downloader = new BatchExecutor<DownloadTask, DownloadTask>(downloadThreads, mode)
+                .setMetricsPrefix("executor.download").open();
+        this.downloader.done(done);
+        // The evaluated tasks are passed on as they come, so the evaluator doesn't keep them
+        this.eval = new FileEvaluator(mimes, evalThreads, mode, tasks -> downloader.close())
+                .setKeepResults(false);
+    }
+
+    /**
+     * Limits how many requests can be made to the same host at once, in each stage
+     * @param limit maximum requests in flight per host
+     * @return the DownloadPipeline instance, for command chaining
+     */
+    public DownloadPipeline limitPerHost(int limit) {
+        eval.limitPerHost(limit);
+        downloader.limitPerHost(limit);
+        return this;
+    }
+
+    /**
+     * Sets whether each file is evaluated and downloaded over a single {@code GET}.
+     * The file is then downloaded by the evaluating thread as soon as it is accepted,
+     * so the evaluation and download stages become one
+     * @param singleRequest true to use one request per file
+     * @return the DownloadPipeline instance, for command chaining
+     * @see FileEvaluator#setSingleRequest(boolean)
+     */
+    public DownloadPipeline setSingleRequest(boolean singleRequest) {
+        this.singleRequest = singleRequest;
+        eval.setSingleRequest(singleRequest);
+        return this;
+    }
+
+    /**
+     * Sets whether the downloaded tasks are kept to be passed to the {@code done} callback.
+     * A pipeline that downloads an unbounded amount of files should stop keeping them and
+     * follow each task through {@link #queued(Completion)} instead
+     * @param keepResults false to pass an empty list to the {@code done} callback
+     * @return the DownloadPipeline instance, for command chaining
+     * @see BatchExecutor#setKeepResults(boolean)
+     */
+    public DownloadPipeline setKeepResults(boolean keepResults) {
+        downloader.setKeepResults(keepResults);
+        return this;
+    }
+
+    /**
+     * Adds a {@link Completion} callback that is called with each
+     * {@link DownloadTask} as it is queued for download
+     * @param handler the callback
+     * @return the DownloadPipeline instance, for command chaining
+     */
+    public DownloadPipeline queued(Completion<DownloadTask> handler) {
+        queued.add(handler);
+        return this;
+    }
+
+    /**
+     * Adds a link to be evaluated, and downloaded if accepted
+     * @param url link to evaluate
+     * @param directory directory to save the file in
+     * @return the DownloadPipeline instance, for command chaining
+     */
+    public DownloadPipeline add(URL url, File directory) {
+        eval.add(url, directory, this::enqueue);
+        return this;
+    }
+
+    /**
+     * Starts accepting links with {@link #submit(URL, File)}, for links that are
+     * found gradually. The pipeline doesn't complete until {@link #close()} is called
+     * @return the DownloadPipeline instance, for command chaining
+     */
+    public DownloadPipeline open() {
+        eval.open();
+        return this;
+    }
+
+    /**
+     * Adds a link and starts evaluating it straight away. Used after {@link #open()}
+     * @param url link to evaluate
+     * @param directory directory to save the file in
+     * @return the DownloadPipeline instance, for command chaining
+     */
+    public DownloadPipeline submit(URL url, File directory) {
+        eval.submit(url, directory, this::enqueue);
+        return this;
+    }
+
+    /**
+     * Stops accepting links after {@link #open()}. The pipeline completes
+     * once every submitted link has been evaluated and downloaded
+     * @return the DownloadPipeline instance, for command chaining
+     */
+    public DownloadPipeline close() {
+        eval.close();
+        return this;
+    }
+
+    /**
+     * Evaluates and downloads links drawn from a {@link UrlFrontier} in batches,
+     * until it is finished and empty. A batch is only committed to the frontier
+     * once every file it produced has finished downloading. The downloaded tasks
+     * aren't kept, so the {@code done} callback is given an empty list
+     * @param frontier frontier to take links from
+     * @param directory directory to save the files in
+     * @param batchSize the most links to take from the frontier at a time
+     * @return the DownloadPipeline instance, for command chaining
+     * @see FileEvaluator#drain(UrlFrontier, File, int, Completion)
+     */
+    public DownloadPipeline drain(UrlFrontier frontier, File directory, int batchSize) {
+        downloader.setKeepResults(false);
+        eval.drain(frontier, directory, batchSize, this::enqueue);
+        return this;
+    }
+
+    /**
+     * Starts evaluating the added links
+     * @return the DownloadPipeline instance, for command chaining
+     * @throws InterruptedException throws if there is an error starting the executor
+     */
+    public DownloadPipeline start() throws InterruptedException {
+        eval.start();
+        return this;
+    }
+
+    /**
+     * Gets the {@link FileEvaluator} that evaluates the links
+     */
+    public FileEvaluator getEvaluator() {
+        return eval;
+    }
+
+    /**
+     * Gets the {@link BatchExecutor} that downloads the files
+     */
+    public BatchExecutor<DownloadTask, DownloadTask> getDownloader() {
+        return downloader;
+    }
+
+    /**
+     * Gets the amount of links that couldn't be evaluated, and so were never downloaded
+     * @see FileEvaluator#getFailedCount()
+     */
+    public int getFailedCount() {
+        return eval.getFailedCount();
+    }
+
+    /**
+     * Passes an evaluated task straight to the downloader, blocking the
+     * evaluating thread while the download queue is full. A place in the
+     * queue is given back once the task completes, whether or not it throws.
+     * Tasks that already hold the response are downloaded on the evaluating thread
+     */
+    private void enqueue(DownloadTask task) throws Exception {
+        if (task == null)
+            return;
+
+        // Released when the task completes, even if it throws, or straight away if it can't be queued
+        AtomicBoolean held = new AtomicBoolean();
+        Runnable release = () -> {
+            if (held.compareAndSet(true, false))
+                capacity.release();
+        };
+        if (!singleRequest) {
+            capacity.acquire();
+            held.set(true);
+            task.getFuture().whenComplete((t, e) -> release.run());
+        }
+        for (Completion<DownloadTask> handler : queued)
+            try {
+                handler.onComplete(task);
+            } catch (Exception e) {
+                Logs.LOG.exception(e);
+            }
+
+        // Downloads on the evaluating thread hold its slot for the host, not the downloader's
+        if (singleRequest)
+            downloader.run(task.setHostScheduler(eval.getScheduler()));
+        else
+            try {
+                downloader.submit(task.setHostScheduler(downloader.getScheduler()));
+            } catch (RuntimeException e) {
+                release.run();
+                throw e;
+            }
+    }
+}
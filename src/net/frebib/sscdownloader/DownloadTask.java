@@ -1,30 +1,100 @@
 package net.frebib.sscdownloader;
 
+import net.frebib.sscdownloader.DownloadJournal.Segment;
+import net.frebib.sscdownloader.concurrent.HostScheduler;
 import net.frebib.sscdownloader.concurrent.Task;
-import net.frebib.sscdownloader.gui.DownloadClient;
+import net.frebib.sscdownloader.http.Response;
+import net.frebib.sscdownloader.http.Transport;
+import net.frebib.sscdownloader.http.Transports;
+import net.frebib.sscdownloader.metrics.Counter;
+import net.frebib.sscdownloader.metrics.Histogram;
+import net.frebib.sscdownloader.metrics.Metrics;
 
 import java.awt.*;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A {@link Task} to download a file to a specified directory
  * with progess and completion callbacks.
- * Can be cancelled and paused
+ * Can be cancelled and paused.
+ * Files served with {@code Accept-Ranges: bytes} are split into
+ * byte ranges which are fetched in parallel over separate connections,
+ * using {@link Transport#forSegments()} so HTTP/2 doesn't multiplex them onto one.
+ * When the task is given a {@link HostScheduler}, the extra connections are taken from
+ * the host's limit, and segments without a connection of their own are fetched one
+ * after another by the connections there are.
+ * Data is written to a {@code .part} file alongside a {@link DownloadJournal}
+ * so an interrupted download resumes instead of starting from scratch.
+ * Every read passes through {@link BandwidthLimiter#GLOBAL} and an optional per-task limiter.
+ * When a {@link ContentIndex} mode is set, the content is hashed as it is written and
+ * a file that has already been downloaded into the directory isn't stored twice
  */
 public class DownloadTask extends Task<URL, DownloadTask> {
-    private final int CHUNK_SIZE = 4096;
-
-    private File file;
+    private static final long TARGET_FILL_MILLIS = 10;
+    private static final long RESIZE_INTERVAL_NANOS = 250_000_000;
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    private static final ExecutorService SEGMENT_POOL = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "segment");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final Metrics METRICS = Metrics.getDefault();
+    private static final Counter BYTES = METRICS.counter("download.bytes");
+    private static final Counter COMPLETED = METRICS.counter("download.completed");
+    private static final Counter ERRORS = METRICS.counter("download.errors");
+    private static final Histogram TTFB = METRICS.histogram("download.ttfb");
+    private static final Histogram TRANSFER = METRICS.histogram("download.transfer");
+    private static volatile int defaultSegments = 4;
+    private static volatile long progressNanos = 100_000_000, progressBytes = 0;
+
+    private File file, partFile, journalFile;
     private URL url;
-    private State dlState;
+    private volatile State dlState;
+    private int segments;
+    private volatile BandwidthLimiter limiter;
+    private Transport transport;
+    private volatile HostScheduler hosts;
+    private Response adopted;
+    private Counter hostBytes;
+    private ContentIndex index;
+    private MessageDigest digest, prefixDigest;
+    private byte[] prefixHash;
+    private volatile File duplicateOf;
 
     private long size;
-    private long bytes;
-    private float progress;
+    private final AtomicLong bytes;
+    private final AtomicLong lastProgressNanos, lastProgressBytes;
+    private final ReentrantLock pauseLock;
+    private final Condition unpaused;
+    private volatile float progress;
 
     /**
      * Creates a new DownloadTask
@@ -37,78 +107,468 @@ public class DownloadTask extends Task<URL, DownloadTask> {
 
         this.url = url;
         this.file = new File(path, filename);
+        this.partFile = new File(path, filename + ".part");
+        this.journalFile = new File(path, filename + ".journal");
         this.dlState = State.UNINITIALISED;
+        this.segments = defaultSegments;
+        this.transport = Transports.getDefault();
+        this.bytes = new AtomicLong();
+        this.lastProgressNanos = new AtomicLong(System.nanoTime());
+        this.lastProgressBytes = new AtomicLong();
+        this.pauseLock = new ReentrantLock();
+        this.unpaused = pauseLock.newCondition();
     }
 
     @Override
     public DownloadTask call(URL url) throws Exception {
-        if (dlState == State.CANCELLED)
+        if (dlState == State.CANCELLED) {
+            if (adopted != null)
+                adopted.close();
             return this;
+        }
 
-        DownloadClient.LOG.fine("Download starting for: " + file.getCanonicalPath());
+        Logs.LOG.fine("Download starting for: " + file.getCanonicalPath());
         setState(State.INITIALISED);
+        hostBytes = METRICS.counter("host." + url.getHost() + ".bytes");
 
-        HttpURLConnection conn;
-        FileOutputStream fs = null;
-        InputStream is = null;
+        Response res = null;
+        DownloadJournal journal = null;
 
         try {
-            conn = (HttpURLConnection) url.openConnection();
-            conn.connect();
-
-            int response = conn.getResponseCode();
-            if (response < 200 || response > 299) {
-                setState(State.ERROR);
-                return this;
-            }
-            size = conn.getContentLength();
-            if (size < 1) {
-                setState(State.ERROR);
-                return this;
-            }
-
             file.getParentFile().mkdirs();
-            fs = new FileOutputStream(file);
-            is = conn.getInputStream();
+            journal = partFile.exists() ? DownloadJournal.load(journalFile, url) : null;
+            Segment resume = journal != null ? journal.firstIncomplete() : null;
+
+            if (adopted != null && resume == null)
+                res = adopted;
+            else {
+                if (adopted != null)
+                    adopted.close();    // Resuming is cheaper than the whole file
+                res = request(journal != null ? journal.getValidator() : null, resume);
+            }
+            adopted = null;
+            if (resume != null && journal.isContinuedBy(res, resume)) {
+                Logs.LOG.fine("Resuming " + file.getName() + " from " + journal.getCommitted() + " bytes");
+                size = journal.getSize();
+            } else {
+                if (journal != null) {
+                    // The file has changed, or the server ignored the range or sent another one
+                    journal.delete();
+                    if (res.getStatus() == HttpURLConnection.HTTP_PARTIAL) {
+                        res.close();
+                        res = request(null, null);
+                    }
+                }
 
-            setState(State.DOWNLOADING);
+                if (!res.isSuccess()) {
+                    ERRORS.inc();
+                    setState(State.ERROR);
+                    return this;
+                }
+                size = res.getContentLength();
+                if (size < 1) {
+                    ERRORS.inc();
+                    setState(State.ERROR);
+                    return this;
+                }
 
-            synchronized (this) {
-                while (dlState == State.DOWNLOADING || dlState == State.PAUSED) {
-                    if (dlState == State.PAUSED)
-                        wait();
-
-                    int chunk = (int) Math.min(CHUNK_SIZE, size - bytes);
-                    byte[] buffer = new byte[chunk];
-
-                    int count = is.read(buffer);
-                    if (count == -1) {              // At EOF
-                        setState(State.COMPLETED);
-                        break;
-                    } else {                        // Write bytes to file
-                        fs.write(buffer, 0, count);
-                        bytes += count;
-                        setProgress((float) bytes / size * 100);
-                    }
+                journal = DownloadJournal.fromResponse(journalFile, url, res, size)
+                        .split(segmentCount(res));
+                try (RandomAccessFile out = new RandomAccessFile(partFile, "rw")) {
+                    out.setLength(size);
                 }
             }
+            bytes.set(journal.getCommitted());
+
+            ContentIndex.Mode dedupe = ContentIndex.getMode();
+            if (dedupe != ContentIndex.Mode.OFF) {
+                index = ContentIndex.forDirectory(file.getParentFile());
+                if (journal.getCommitted() == 0) {
+                    // Read from the start, so it can be hashed as it is written
+                    prefixDigest = ContentIndex.newDigest();
+                    if (journal.getSegments().size() == 1)
+                        digest = ContentIndex.newDigest();
+                }
+            }
+
+            setState(State.DOWNLOADING);
+            long transferStart = System.nanoTime();
+            download(res.getBody(), journal);
+
+            if (dlState == State.DOWNLOADING) {
+                journal.delete();
+                if (index != null)
+                    save(dedupe);
+                else
+                    Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                TRANSFER.recordSince(transferStart);
+                COMPLETED.inc();
+                setState(State.COMPLETED);
+            } else
+                journal.save();
         } catch (Exception e) {
+            ERRORS.inc();
             setState(State.ERROR);
-            DownloadClient.LOG.exception(e);
+            Logs.LOG.exception(e);
+            if (journal != null)
+                journal.save();
         } finally {
             try {
-                if (fs != null)
-                    fs.close();
-                if (is != null)
-                    is.close();
+                if (res != null)
+                    res.close();
             } catch (Exception e) {
-                DownloadClient.LOG.exception(e);
+                Logs.LOG.exception(e);
             }
         }
-        DownloadClient.LOG.fine("Download finished for: " + file.getCanonicalPath());
+        Logs.LOG.fine("Download finished for: " + file.getCanonicalPath());
         return this;
     }
 
+    /**
+     * Moves the downloaded file into place, unless the {@link ContentIndex} already has a
+     * file with the same content, in which case it is linked to or skipped instead
+     * @param mode what to do with a duplicate
+     * @throws IOException if the file can't be hashed or moved
+     */
+    private void save(ContentIndex.Mode mode) throws IOException {
+        File original = duplicateOf;
+        byte[] hash = null, prefix = prefixHash;
+        if (original == null) {
+            if (digest != null) {
+                hash = digest.digest();
+                if (prefix == null)
+                    prefix = prefixDigest.digest();     // Shorter than the prefix
+            } else {
+                // Written out of order or resumed, so hash it from disk
+                byte[][] hashes = ContentIndex.hash(partFile);
+                hash = hashes[0];
+                prefix = hashes[1];
+            }
+            original = index.find(hash, size);
+        }
+
+        if (original == null || original.getAbsoluteFile().equals(file.getAbsoluteFile())) {
+            Files.move(partFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            if (hash != null)
+                index.put(file, hash, prefix, size);
+            return;
+        }
+
+        duplicateOf = original;
+        Files.delete(partFile.toPath());
+        if (mode == ContentIndex.Mode.SKIP) {
+            Logs.LOG.info("Skipped " + file.getName() + ", already downloaded as " + original.getName());
+            return;
+        }
+        Files.deleteIfExists(file.toPath());
+        try {
+            Files.createLink(file.toPath(), original.toPath());
+            Logs.LOG.info("Linked " + file.getName() + " to " + original.getName());
+        } catch (IOException | UnsupportedOperationException e) {
+            Logs.LOG.fine("Unable to link " + file.getName() + ", copying instead: " + e.getMessage());
+            Files.copy(original.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Opens a connection to the file, optionally asking for the remainder of a segment
+     * @param validator an {@code If-Range} validator, so the server sends the
+     *                  whole file instead of the range if it has changed
+     * @param segment the segment to request the rest of, or null for the whole file
+     * @return the response
+     * @throws IOException if the request fails
+     */
+    private Response request(String validator, Segment segment) throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        if (segment != null && validator != null) {
+            headers.put("Range", segment.toRangeHeader());
+            headers.put("If-Range", validator);
+        }
+        return send(transport, headers);
+    }
+
+    /**
+     * Sends a {@code GET} for the file, recording the time taken for the response to arrive
+     * @param transport the transport to send it with
+     * @param headers extra request headers
+     * @return the response
+     * @throws IOException if the request fails
+     */
+    private Response send(Transport transport, Map<String, String> headers) throws IOException {
+        long start = System.nanoTime();
+        try {
+            Response res = transport.send("GET", url, headers, 0);
+            TTFB.recordSince(start);
+            METRICS.response(url, res.getStatus());
+            return res;
+        } catch (IOException e) {
+            METRICS.failure(url);
+            throw e;
+        }
+    }
+
+    /**
+     * Works out how many byte ranges the file should be split into,
+     * falling back to a single stream if the server doesn't support ranges
+     * @param res the response to the initial request for the file
+     * @return the amount of segments to download, at least 1
+     */
+    private int segmentCount(Response res) {
+        if (segments < 2 || !"bytes".equalsIgnoreCase(res.getHeader("Accept-Ranges")))
+            return 1;
+        return (int) Math.max(1, Math.min(segments, size / MIN_SEGMENT_SIZE));
+    }
+
+    /**
+     * Downloads every incomplete segment of the file in parallel. The first incomplete
+     * segment is read from the already open stream, the rest are fetched with
+     * {@code Range} requests, on as many extra connections as the host's limit allows
+     * @param first the stream from the initial request, positioned at the
+     *              start of the first incomplete segment
+     * @param journal the journal recording the segments
+     * @throws Exception if any of the segments fail
+     */
+    private void download(InputStream first, DownloadJournal journal) throws Exception {
+        Segment head = journal.firstIncomplete();
+        if (head == null)
+            return;
+
+        ConcurrentLinkedQueue<Segment> rest = new ConcurrentLinkedQueue<>();
+        for (Segment seg : journal.getSegments())
+            if (seg != head && seg.getRemaining() > 0)
+                rest.add(seg);
+
+        HostScheduler scheduler = hosts;
+        String host = url.getHost();
+        int connections = scheduler != null ? scheduler.reserve(host, rest.size()) : rest.size();
+
+        int count = rest.size() + 1;
+        List<Future<?>> futures = new ArrayList<>();
+        try (FileChannel out = FileChannel.open(partFile.toPath(), StandardOpenOption.WRITE)) {
+            for (int i = 0; i < connections; i++)
+                futures.add(SEGMENT_POOL.submit(() -> {
+                    fetchRanges(rest, out, journal);
+                    return null;
+                }));
+            if (count > 1)
+                Logs.LOG.finer(() -> "Downloading " + file.getName() + " in " + count
+                        + " segments over " + (connections + 1) + " connections");
+
+            transfer(first, out, head, journal);
+            fetchRanges(rest, out, journal);
+            for (Future<?> f : futures)
+                f.get();
+        } catch (Exception e) {
+            if (dlState == State.DOWNLOADING || dlState == State.PAUSED)
+                setState(State.ERROR);
+            futures.forEach(f -> f.cancel(true));
+            throw e;
+        } finally {
+            if (scheduler != null)
+                scheduler.release(host, connections);
+        }
+    }
+
+    /**
+     * Fetches segments from a queue shared between connections until it is empty
+     * or the download stops
+     * @param queue the segments that haven't been started
+     * @param out the file to write to, shared between segments
+     * @param journal the journal to record progress in
+     * @throws Exception if a segment fails
+     */
+    private void fetchRanges(ConcurrentLinkedQueue<Segment> queue, FileChannel out, DownloadJournal journal)
+            throws Exception {
+        Segment seg;
+        while (duplicateOf == null && (dlState == State.DOWNLOADING || dlState == State.PAUSED)
+                && (seg = queue.poll()) != null)
+            fetchRange(seg, out, journal);
+    }
+
+    /**
+     * Fetches the remainder of a segment and writes it at its offset in the file
+     * @param seg the segment to fetch
+     * @param out the file to write to, shared between segments
+     * @param journal the journal to record progress in
+     * @throws IOException if the server doesn't honour the range, or the connection fails
+     */
+    private void fetchRange(Segment seg, FileChannel out, DownloadJournal journal) throws Exception {
+        try (Response res = send(transport.forSegments(),
+                Collections.singletonMap("Range", seg.toRangeHeader()))) {
+            if (!journal.isContinuedBy(res, seg))
+                throw new IOException("Range " + seg.toRangeHeader() + " refused with " + res.getStatus()
+                        + ", Content-Range " + res.getHeader("Content-Range"));
+            transfer(res.getBody(), out, seg, journal);
+        }
+    }
+
+    /**
+     * Copies the remainder of a segment from the stream into the file, pausing
+     * when the download is paused and stopping when it is cancelled.
+     * Buffers are borrowed from the {@link BufferPool} and resized to hold roughly
+     * {@link #TARGET_FILL_MILLIS} worth of data at the observed transfer rate
+     * @param is stream to read from
+     * @param out file to write to, at the segment's position
+     * @param seg the segment being copied
+     * @param journal the journal to record progress in
+     * @throws Exception if the stream ends before the segment is complete
+     */
+    private void transfer(InputStream is, FileChannel out, Segment seg, DownloadJournal journal) throws Exception {
+        BufferPool pool = BufferPool.shared();
+        ByteBuffer buf = pool.acquire(BufferPool.MIN_SIZE);
+        ReadableByteChannel in = buf.hasArray() ? null : Channels.newChannel(is);
+
+        long windowStart = System.nanoTime(), windowBytes = 0;
+        try {
+            while (seg.getRemaining() > 0 && duplicateOf == null
+                    && (dlState == State.DOWNLOADING || dlState == State.PAUSED)) {
+                waitWhilePaused();
+
+                // Fill the buffer, as far as the end of the segment
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), seg.getRemaining()));
+                boolean eof = fill(is, in, buf);
+                buf.flip();
+
+                int count = buf.remaining();
+                long pos = seg.getPosition();
+                if (prefixDigest != null && seg.getStart() == 0)
+                    hash(buf, pos);
+                while (buf.hasRemaining())          // Write bytes to file
+                    pos += out.write(buf, pos);
+
+                seg.advance(count);
+                journal.committed(count);
+                BYTES.add(count);
+                hostBytes.add(count);
+                setProgress(bytes.addAndGet(count));
+
+                BandwidthLimiter job = limiter;
+                if (job != null)
+                    job.acquire(count);
+                BandwidthLimiter.GLOBAL.acquire(count);
+
+                if (eof && seg.getRemaining() > 0)  // At EOF
+                    throw new EOFException("Segment ended " + seg.getRemaining() + " bytes early");
+
+                // Resize the buffer to suit the connection speed
+                windowBytes += count;
+                long elapsed = System.nanoTime() - windowStart;
+                if (elapsed >= RESIZE_INTERVAL_NANOS) {
+                    int target = (int) Math.min(BufferPool.MAX_SIZE,
+                            windowBytes * TARGET_FILL_MILLIS * 1_000_000 / elapsed);
+                    if (target > buf.capacity() || target < buf.capacity() / 4) {
+                        pool.release(buf);
+                        buf = pool.acquire(target);
+                        if (in == null && !buf.hasArray())
+                            in = Channels.newChannel(is);
+                    }
+                    windowStart = System.nanoTime();
+                    windowBytes = 0;
+                }
+            }
+        } finally {
+            pool.release(buf);
+        }
+    }
+
+    /**
+     * Feeds bytes from the start of the file to the inline digests. Once the first
+     * {@link ContentIndex#PREFIX_SIZE} bytes are in, the download is stopped if they
+     * match a known file whose end also matches, and {@link ContentIndex#isEarlyAbort()} is set
+     * @param buf the bytes, left unchanged
+     * @param pos position of the bytes in the file
+     */
+    private void hash(ByteBuffer buf, long pos) {
+        if (digest != null)
+            digest.update(buf.duplicate());
+        if (prefixHash != null || pos >= ContentIndex.PREFIX_SIZE)
+            return;
+
+        ByteBuffer head = buf.duplicate();
+        head.limit(head.position() + (int) Math.min(head.remaining(), ContentIndex.PREFIX_SIZE - pos));
+        prefixDigest.update(head);
+        if (pos + buf.remaining() < ContentIndex.PREFIX_SIZE)
+            return;
+
+        prefixHash = prefixDigest.digest();
+        if (ContentIndex.isEarlyAbort() && size > ContentIndex.PREFIX_SIZE) {
+            File original = index.findPrefix(prefixHash, size);
+            if (original != null && !original.getAbsoluteFile().equals(file.getAbsoluteFile())
+                    && tailMatches(original)) {
+                Logs.LOG.fine("Stopping " + file.getName() + ", it starts and ends like " + original.getName());
+                duplicateOf = original;
+            }
+        }
+    }
+
+    /**
+     * Checks the end of the file against a file that starts the same, before trusting
+     * they are the same. The last {@link ContentIndex#PREFIX_SIZE} bytes are fetched with
+     * a {@code Range} request and compared with the file on disk
+     * @param original the file with the same start
+     * @return true if the ends match, false if they don't or couldn't be compared
+     */
+    private boolean tailMatches(File original) {
+        long start = Math.max(ContentIndex.PREFIX_SIZE, size - ContentIndex.PREFIX_SIZE);
+        byte[] expected = new byte[(int) (size - start)];
+        try (RandomAccessFile in = new RandomAccessFile(original, "r")) {
+            in.seek(start);
+            in.readFully(expected);
+        } catch (IOException e) {
+            return false;
+        }
+
+        String range = "bytes=" + start + "-" + (size - 1);
+        try (Response res = send(transport.forSegments(), Collections.singletonMap("Range", range))) {
+            String contentRange = res.getHeader("Content-Range");
+            if (res.getStatus() != HttpURLConnection.HTTP_PARTIAL || contentRange == null
+                    || !contentRange.startsWith("bytes " + start + "-"))
+                return false;
+            return Arrays.equals(expected, res.getBody().readNBytes(expected.length));
+        } catch (IOException e) {
+            Logs.LOG.fine("Unable to compare the end of " + file.getName() + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Reads from the stream until the buffer is full or the stream ends
+     * @param is stream to read from, when the buffer is backed by an array
+     * @param in channel wrapping the stream, used for direct buffers
+     * @param buf buffer to fill
+     * @return true if the end of the stream was reached
+     * @throws IOException if the read fails
+     */
+    private static boolean fill(InputStream is, ReadableByteChannel in, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            int count;
+            if (buf.hasArray()) {
+                count = is.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+                if (count > 0)
+                    buf.position(buf.position() + count);
+            } else
+                count = in.read(buf);
+            if (count == -1)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Blocks while the download is paused. Uses a {@link ReentrantLock} rather than
+     * {@code wait()} so a paused virtual thread doesn't pin its carrier thread
+     */
+    private void waitWhilePaused() throws InterruptedException {
+        pauseLock.lock();
+        try {
+            while (dlState == State.PAUSED)
+                unpaused.await();
+        } finally {
+            pauseLock.unlock();
+        }
+    }
+
     private void setState(State state) {
         if (state == State.CANCELLED && dlState.getValue() > State.PAUSED.getValue())
             return;
@@ -116,8 +576,22 @@ public class DownloadTask extends Task<URL, DownloadTask> {
         setChanged();
         notifyObservers(state);
     }
-    private void setProgress(float percent) {
+    /**
+     * Updates the progress, notifying observers at most once per progress interval.
+     * Only one of the threads that reach the end of an interval sends the event
+     * @param done total amount of bytes downloaded
+     */
+    private void setProgress(long done) {
+        float percent = (float) done / size * 100;
         progress = percent;
+
+        long now = System.nanoTime(), last = lastProgressNanos.get();
+        if (now - last < progressNanos || done - lastProgressBytes.get() < progressBytes)
+            return;
+        if (!lastProgressNanos.compareAndSet(last, now))
+            return;
+        lastProgressBytes.set(done);
+
         setChanged();
         notifyObservers(percent);
     }
@@ -134,25 +608,109 @@ public class DownloadTask extends Task<URL, DownloadTask> {
     /**
      * Resumes a paused download
      */
-    public synchronized void resume() {
-        if (dlState !=  State.PAUSED) return;
-        dlState = State.DOWNLOADING;
-        notifyAll();
+    public void resume() {
+        pauseLock.lock();
+        try {
+            if (dlState !=  State.PAUSED) return;
+            dlState = State.DOWNLOADING;
+            unpaused.signalAll();
+        } finally {
+            pauseLock.unlock();
+        }
     }
 
     /**
      * Cancels the download
      */
     public void cancel() {
-        DownloadClient.LOG.warning("Download cancelled: " + this.hashCode());
+        Logs.LOG.warning("Download cancelled: " + this.hashCode());
         setState(State.CANCELLED);
+        pauseLock.lock();
+        try {
+            unpaused.signalAll();
+        } finally {
+            pauseLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the maximum amount of parallel connections used to download the file
+     * @param segments connection count, 1 to always use a single stream
+     * @return the DownloadTask instance, for command chaining
+     */
+    public DownloadTask setSegments(int segments) {
+        this.segments = Math.max(1, segments);
+        return this;
+    }
+
+    /**
+     * Gives the task a response to a {@code GET} for the file that has already
+     * been made, which is downloaded from instead of sending another request
+     * @param res an open response, closed by the task once it has been called
+     * @return the DownloadTask instance, for command chaining
+     */
+    public DownloadTask adopt(Response res) {
+        this.adopted = res;
+        return this;
+    }
+
+    /**
+     * Sets the {@link Transport} used to fetch the file
+     * @param transport the transport
+     * @return the DownloadTask instance, for command chaining
+     */
+    public DownloadTask setTransport(Transport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    /**
+     * Sets the {@link HostScheduler} the task is run by, so the extra connections
+     * for its segments count towards the host's limit
+     * @param hosts the scheduler, or null to not limit the segments
+     * @return the DownloadTask instance, for command chaining
+     */
+    public DownloadTask setHostScheduler(HostScheduler hosts) {
+        this.hosts = hosts;
+        return this;
+    }
+
+    /**
+     * Sets a rate limit for this download, on top of {@link BandwidthLimiter#GLOBAL}.
+     * A limiter can be shared between several tasks to cap them as a group
+     * @param limiter the limiter, or null to only use the global limit
+     * @return the DownloadTask instance, for command chaining
+     */
+    public DownloadTask setLimiter(BandwidthLimiter limiter) {
+        this.limiter = limiter;
+        return this;
+    }
+
+    /**
+     * Sets the amount of parallel connections new {@link DownloadTask}s use by default
+     * @param segments connection count, 1 to always use a single stream
+     */
+    public static void setDefaultSegments(int segments) {
+        defaultSegments = Math.max(1, segments);
+    }
+
+    /**
+     * Sets how often {@link DownloadTask}s notify observers of progress. An event is
+     * sent once both the time and the amount of data since the last event have passed.
+     * State changes are always sent straight away
+     * @param millis minimum milliseconds between progress events
+     * @param bytes minimum bytes downloaded between progress events
+     */
+    public static void setProgressInterval(long millis, long bytes) {
+        progressNanos = Math.max(0, millis) * 1_000_000;
+        progressBytes = Math.max(0, bytes);
     }
 
     /**
      * Gets the amount of the file that is downloaded in bytes
      */
     public long getBytes() {
-        return bytes;
+        return bytes.get();
     }
 
     /**
@@ -190,6 +748,14 @@ public class DownloadTask extends Task<URL, DownloadTask> {
         return file.getAbsolutePath();
     }
 
+    /**
+     * Gets the file with the same content that this download was linked to or skipped for
+     * @return the file, or null if the download wasn't a duplicate
+     */
+    public File getDuplicateOf() {
+        return duplicateOf;
+    }
+
     /**
      * Gets the {@link URL} from where the file is downloaded
      */
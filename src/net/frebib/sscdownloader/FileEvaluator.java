@@ -2,24 +2,48 @@ package net.frebib.sscdownloader;
 
 import net.frebib.sscdownloader.concurrent.BatchExecutor;
 import net.frebib.sscdownloader.concurrent.Completion;
+import net.frebib.sscdownloader.concurrent.HostScheduler;
 import net.frebib.sscdownloader.concurrent.Task;
-import net.frebib.sscdownloader.gui.DownloadClient;
+import net.frebib.sscdownloader.concurrent.ThreadMode;
+import net.frebib.sscdownloader.concurrent.Worker;
+import net.frebib.sscdownloader.http.PeekedResponse;
+import net.frebib.sscdownloader.http.Response;
+import net.frebib.sscdownloader.http.Transport;
+import net.frebib.sscdownloader.http.Transports;
+import net.frebib.sscdownloader.metrics.Counter;
+import net.frebib.sscdownloader.metrics.Histogram;
+import net.frebib.sscdownloader.metrics.Metrics;
 
 import java.io.File;
-import java.net.HttpURLConnection;
+import java.io.IOException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Downloads file headers asynchronously and ensures it has the correct extension; if not
- * it tries to find a correct extension match from the given {@link MimeTypeCollection}
+ * it tries to find a correct extension match from the given {@link MimeTypeCollection}.
+ * Files served without a useful {@code Content-Type} are recognised from their first
+ * bytes with a {@link ContentSniffer}
  */
 public class FileEvaluator {
+    private static final Metrics METRICS = Metrics.getDefault();
+    private static final Histogram HEAD_TIME = METRICS.histogram("eval.head");
+    private static final Histogram GET_TIME = METRICS.histogram("eval.get");
+    private static final Counter ACCEPTED = METRICS.counter("eval.accepted");
+    private static final Counter REJECTED = METRICS.counter("eval.rejected");
+    private static final Counter FAILED = METRICS.counter("eval.failed");
+
     private MimeTypeCollection mimeTypes;
+    private Transport transport;
+    private boolean singleRequest, sniffing, keepResults = true;
     private BatchExecutor<EvalTask, DownloadTask> executor;
 
     private final List<EvalTask> evalTasks;
+    private final AtomicInteger failures = new AtomicInteger();
 
     /**
      * Creates a new FileEvaluator instance
@@ -29,10 +53,26 @@ public class FileEvaluator {
      *             complete with the resulting {@link DownloadTask} objects to be executed
      */
     public FileEvaluator(MimeTypeCollection mimes, int threadCount, Completion<List<DownloadTask>> done) {
-        executor = new BatchExecutor<>(threadCount);
+        this(mimes, threadCount, ThreadMode.PLATFORM, done);
+    }
+
+    /**
+     * Creates a new FileEvaluator instance that runs on a kind of thread
+     * @param mimes {@link MimeTypeCollection} to match missing extensions to
+     * @param threadCount amount of links to evaluate at once
+     * @param mode the kind of threads to evaluate links on
+     * @param done a {@link Completion} callback that is called when the operation is
+     *             complete with the resulting {@link DownloadTask} objects to be executed
+     */
+    public FileEvaluator(MimeTypeCollection mimes, int threadCount, ThreadMode mode,
+                         Completion<List<DownloadTask>> done) {
+        executor = new BatchExecutor<>(threadCount, mode);
+        executor.setMetricsPrefix("executor.eval");
         executor.done(done);
-        evalTasks = new ArrayList<>();
+        evalTasks = Collections.synchronizedList(new ArrayList<>());
         mimeTypes = mimes;
+        transport = Transports.getDefault();
+        sniffing = true;
     }
 
     /**
@@ -45,10 +85,133 @@ public class FileEvaluator {
     public FileEvaluator add(URL url, File directory, Completion<DownloadTask> done) {
         EvalTask task = (EvalTask) new EvalTask(url, directory).done(done);
         executor.add(task);
-        evalTasks.add(task);
+        if (keepResults)
+            evalTasks.add(task);
+        return this;
+    }
+
+    /**
+     * Starts accepting links with {@link #submit(URL, File, Completion)}, which are
+     * evaluated as soon as they are submitted, for links that are found gradually.
+     * The completion callback isn't called until {@link #close()} is called
+     * @return the FileEvaluator instance, for command chaining
+     */
+    public FileEvaluator open() {
+        executor.open();
+        return this;
+    }
+
+    /**
+     * Adds a link and evaluates it straight away. Used after {@link #open()},
+     * and can be called from many threads at once
+     * @param url url to evaluate
+     * @param directory save directory to be inserted into the {@link DownloadTask} object
+     * @param done a {@link Completion} callback that is called when link has been evaluated
+     * @return the FileEvaluator instance, for command chaining
+     */
+    public FileEvaluator submit(URL url, File directory, Completion<DownloadTask> done) {
+        EvalTask task = (EvalTask) new EvalTask(url, directory).done(done);
+        if (keepResults)
+            evalTasks.add(task);
+        executor.submit(task);
+        return this;
+    }
+
+    /**
+     * Stops accepting links after {@link #open()}. The completion
+     * callback is called once every submitted link has been evaluated
+     * @return the FileEvaluator instance, for command chaining
+     */
+    public FileEvaluator close() {
+        executor.close();
+        return this;
+    }
+
+    /**
+     * Evaluates links drawn from a {@link UrlFrontier} until it is finished and empty.
+     * Links are taken in batches and at most two batches are evaluated at once, so
+     * memory use doesn't grow with the frontier. Each batch is committed once all
+     * of its links have been evaluated and every {@link DownloadTask} they produced has
+     * finished, so links whose files weren't saved are taken again after a restart.
+     * The {@code done} callback must therefore make sure each task is run, as
+     * {@link DownloadPipeline} does. The tasks aren't kept, in {@link #getTasks()} or for
+     * the callback passed to the constructor, which is given an empty list
+     * @param frontier frontier to take links from
+     * @param directory save directory to be inserted into the {@link DownloadTask} objects
+     * @param batchSize the most links to take from the frontier at a time
+     * @param done a {@link Completion} callback that is called when each link has been
+     *             evaluated, and is expected to run the resulting task
+     * @return the FileEvaluator instance, for command chaining
+     */
+    public FileEvaluator drain(UrlFrontier frontier, File directory, int batchSize,
+                               Completion<DownloadTask> done) {
+        executor.setKeepResults(false).open();
+        Semaphore batches = new Semaphore(2);
+        new Worker<UrlFrontier, Integer>(f -> {
+            int count = 0;
+            UrlFrontier.Batch batch;
+            try {
+                while (true) {
+                    batches.acquire();
+                    if ((batch = f.take(batchSize)) == null)
+                        break;
+                    CompletableFuture<?>[] finished = new CompletableFuture<?>[batch.size()];
+                    int i = 0;
+                    for (URL url : batch) {
+                        EvalTask task = (EvalTask) new EvalTask(url, directory).done(done);
+                        // Rejected links are finished once evaluated, accepted ones once downloaded
+                        finished[i++] = task.getFuture().handle((dl, e) -> dl)
+                                .thenCompose(dl -> dl != null
+                                        ? dl.getFuture().handle((r, e) -> r)
+                                        : CompletableFuture.completedFuture(null));
+                        executor.submit(task);
+                    }
+                    UrlFrontier.Batch taken = batch;
+                    CompletableFuture.allOf(finished).whenComplete((v, e) -> {
+                        taken.commit();
+                        batches.release();
+                    });
+                    count += batch.size();
+                }
+            } finally {
+                executor.close();
+            }
+            return count;
+        }).error(Logs.LOG::exception).start(frontier);
+        return this;
+    }
+
+    /**
+     * Sets whether evaluated tasks are kept, in {@link #getTasks()} and for the
+     * {@code done} callback. Links that are submitted for a long time, and whose
+     * tasks are handled as they are evaluated, shouldn't be kept
+     * @param keepResults false to drop each task once it has been evaluated
+     * @return the FileEvaluator instance, for command chaining
+     */
+    public FileEvaluator setKeepResults(boolean keepResults) {
+        this.keepResults = keepResults;
+        executor.setKeepResults(keepResults);
         return this;
     }
 
+    /**
+     * Limits how many links on the same host are evaluated at once
+     * @param limit maximum requests in flight per host
+     * @return the FileEvaluator instance, for command chaining
+     */
+    public FileEvaluator limitPerHost(int limit) {
+        executor.limitPerHost(limit);
+        return this;
+    }
+
+    /**
+     * Gets the {@link HostScheduler} that queues links by host
+     * @return the scheduler, or null if there is no per-host limit
+     */
+    public HostScheduler getScheduler() {
+        return executor.getScheduler();
+    }
+
     /**
      * Sets the {@link MimeTypeCollection} to match file extensions to
      * @param mimeTypes the collection
@@ -57,6 +220,43 @@ public class FileEvaluator {
         this.mimeTypes = mimeTypes;
     }
 
+    /**
+     * Sets the {@link Transport} used to fetch headers, which is
+     * also passed on to the resulting {@link DownloadTask}s
+     * @param transport the transport
+     */
+    public void setTransport(Transport transport) {
+        this.transport = transport;
+    }
+
+    /**
+     * Sets whether links are evaluated with a {@code GET} instead of a {@code HEAD}.
+     * The filter is decided from the response headers, then the body is either
+     * aborted or handed to the resulting {@link DownloadTask}, saving a request
+     * per file. The tasks hold an open connection so should be called straight away
+     * @param singleRequest true to evaluate with a {@code GET}
+     * @return the FileEvaluator instance, for command chaining
+     */
+    public FileEvaluator setSingleRequest(boolean singleRequest) {
+        this.singleRequest = singleRequest;
+        return this;
+    }
+
+    /**
+     * Sets whether files are recognised from their first bytes when the server doesn't
+     * say what they are. With {@code GET}s the bytes are read ahead from the response,
+     * and are still downloaded with the rest of the file. With {@code HEAD}s they are
+     * fetched with a {@code Range} request, only for files without a useful type.
+     * On by default
+     * @param sniffing true to recognise files from their content
+     * @return the FileEvaluator instance, for command chaining
+     * @see ContentSniffer
+     */
+    public FileEvaluator setSniffing(boolean sniffing) {
+        this.sniffing = sniffing;
+        return this;
+    }
+
     /**
      * Starts processing the queue of tasks to evaluate,
      * asynchronously with the amount of threads specified in the constructor
@@ -77,6 +277,14 @@ public class FileEvaluator {
         return this;
     }
 
+    /**
+     * Gets the amount of links that couldn't be evaluated, because the request
+     * or the evaluation failed. These links don't produce a {@link DownloadTask}
+     */
+    public int getFailedCount() {
+        return failures.get();
+    }
+
     /**
      * Gets the entire list of tasks ever submitted to the {@link FileEvaluator}
      * @return a list of tasks
@@ -107,27 +315,79 @@ public class FileEvaluator {
 
         @Override
         public DownloadTask call(URL url) throws Exception {
+            Response res = null;
             try {
-                DownloadClient.LOG.finer("Evaluating url: \"" + url.toString() + "\"");
-                HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-                conn.setRequestMethod("HEAD");
-                conn.connect();
-
+                Logs.LOG.finer(() -> "Evaluating url: \"" + url.toString() + "\"");
+                long start = System.nanoTime();
+                try {
+                    res = singleRequest ? transport.get(url) : transport.head(url);
+                } catch (IOException e) {
+                    METRICS.failure(url);
+                    throw e;
+                }
+                (singleRequest ? GET_TIME : HEAD_TIME).recordSince(start);
+                METRICS.response(url, res.getStatus());
                 fetched = true;
 
                 // Test file extension
                 File f = new File(url.getFile());
-                this.url = conn.getURL();
+                this.url = res.getURL();
                 filename = f.getCanonicalFile().getName();
-                mimeString = conn.getContentType();
+                mimeString = res.getContentType();
+                if (sniffing && singleRequest
+                        && (ContentSniffer.isGeneric(mimeString) || !mimeTypes.hasMime(mimeString)))
+                    res = sniff(res);   // Also checks it isn't mislabelled before filtering it out
+                else if (sniffing && ContentSniffer.isGeneric(mimeString))
+                    sniffRange();
 
-                return evalExtension();
+                DownloadTask task = evalExtension();
+                (task != null ? ACCEPTED : REJECTED).inc();
+                if (task != null && singleRequest) {
+                    // Hand the open response over rather than requesting the file again
+                    task.adopt(res);
+                    res = null;
+                }
+                return task;
             } catch (Exception e) {
-                DownloadClient.LOG.exception(e);
+                failures.incrementAndGet();
+                FAILED.inc();
+                Logs.LOG.exception(e);
+            } finally {
+                if (res != null)
+                    res.close();    // Aborts the body of a filtered GET
             }
             return null;
         }
 
+        /**
+         * Recognises the file from the start of a response body, replacing
+         * the mimetype if it is recognised
+         * @param res a response whose body hasn't been read
+         * @return a response that still returns the bytes that were read
+         * @throws IOException if the body can't be read
+         */
+        private Response sniff(Response res) throws IOException {
+            PeekedResponse peeked = PeekedResponse.peek(res, ContentSniffer.SNIFF_SIZE);
+            String sniffed = ContentSniffer.sniff(peeked.getPeeked(), peeked.getPeekedLength());
+            if (sniffed != null) {
+                Logs.LOG.finer(() -> "Sniffed " + sniffed + " for " + url + ", was sent as " + mimeString);
+                mimeString = sniffed;
+            }
+            return peeked;
+        }
+
+        /**
+         * Requests just the start of the file to recognise it, after a {@code HEAD}
+         */
+        private void sniffRange() throws IOException {
+            Map<String, String> range = Collections.singletonMap("Range",
+                    "bytes=0-" + (ContentSniffer.SNIFF_SIZE - 1));
+            try (Response start = transport.send("GET", url, range, 0)) {
+                if (start.isSuccess())
+                    sniff(start);
+            }
+        }
+
         /**
          * A synchronous method to evaluate a file extension,
          * provided it's header has been fetched from the url
@@ -157,7 +417,7 @@ public class FileEvaluator {
                 }
 
                 if (ext.isEmpty())     // Otherwise have no extension
-                    DownloadClient.LOG.warning("File \"" + filename + "\" has no extension with mime: " + mimeString);
+                    Logs.LOG.warning("File \"" + filename + "\" has no extension with mime: " + mimeString);
             } else
                 return null;    // Return null if the mime type isn't valid
 
@@ -165,7 +425,7 @@ public class FileEvaluator {
             if (!ext.isEmpty())
                 filename = filename.replaceAll("[^a-zA-Z0-9.-]", "_") + '.' + ext;
 
-            return new DownloadTask(url, filename, directory);
+            return new DownloadTask(url, filename, directory).setTransport(transport);
         }
     }
 }
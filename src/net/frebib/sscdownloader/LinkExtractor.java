@@ -0,0 +1,353 @@
+package net.frebib.sscdownloader;
+
+import net.frebib.sscdownloader.concurrent.Completion;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Extracts links from HTML as it is read, without building a document.
+ * A small tokenizer scans the stream for {@code <a href>}, {@code <img src>}
+ * and {@code <base href>} tags, skipping comments, scripts and styles, and
+ * passes each link to a consumer as soon as its tag has been read. Memory
+ * use doesn't grow with the page, apart from remembering the links passed on
+ */
+public class LinkExtractor {
+    /**
+     * The amount of bytes at the start of a page that are searched for a {@code <meta>} charset
+     */
+    public static final int PRESCAN_SIZE = 1024;
+
+    private static final int MAX_NAME = 16;
+    private static final Pattern META_CHARSET = Pattern.compile(
+            "<meta\\s[^>]*?charset\\s*=\\s*[\"']?\\s*([\\w.:-]+)", Pattern.CASE_INSENSITIVE);
+
+    private final WebpageCrawler.LinkType type;
+    private final Completion<URL> consumer;
+    private final Set<String> seen;
+    private final StringBuilder value;
+    private final char[] buf;
+    private URL base;
+    private Reader in;
+    private int pos, len, count;
+
+    /**
+     * Creates a new LinkExtractor
+     * @param base address of the page, that relative links are resolved against
+     * @param type types of links to extract
+     * @param consumer a {@link Completion} callback that is called with each distinct link
+     */
+    public LinkExtractor(URL base, WebpageCrawler.LinkType type, Completion<URL> consumer) {
+        this.base = base;
+        this.type = type;
+        this.consumer = consumer;
+        this.seen = new HashSet<>();
+        this.value = new StringBuilder();
+        this.buf = new char[8192];
+    }
+
+    /**
+     * Reads a page to the end, passing on links as they are found. A byte order mark
+     * decides the charset, then the given charset, then a {@code <meta>} tag in the
+     * first {@value #PRESCAN_SIZE} bytes, and the page is read as UTF-8 otherwise
+     * @param is the body of the page
+     * @param charset the charset from the {@code Content-Type}, or null if it has none
+     * @return the amount of links passed on
+     * @throws IOException if the page can't be read
+     */
+    public int extract(InputStream is, String charset) throws IOException {
+        BufferedInputStream bis = new BufferedInputStream(is, PRESCAN_SIZE);
+        in = new InputStreamReader(bis, detectCharset(bis, charset));
+
+        int c;
+        while ((c = read()) != -1) {
+            if (c != '<')
+                continue;
+            c = read();
+            if (c == '!')
+                skipMarkup();
+            else if (c == '/' || c == '?')
+                skipTo('>');
+            else if (isLetter(c))
+                readTag(c);
+            else if (c != -1)
+                pos--;  // Not a tag, so look at the character again
+        }
+        return count;
+    }
+
+    /**
+     * Works out the charset of a page, leaving the stream after any byte order mark
+     * @param is the body of the page, which must support {@link InputStream#mark(int)}
+     * @param declared the charset from the {@code Content-Type}, or null
+     * @return the charset to read the page with
+     * @throws IOException if the page can't be read
+     */
+    private static Charset detectCharset(InputStream is, String declared) throws IOException {
+        is.mark(PRESCAN_SIZE);
+        byte[] prefix = is.readNBytes(PRESCAN_SIZE);
+        is.reset();
+
+        if (startsWith(prefix, 0xEF, 0xBB, 0xBF)) {
+            is.skip(3);
+            return StandardCharsets.UTF_8;
+        } else if (startsWith(prefix, 0xFE, 0xFF)) {
+            is.skip(2);
+            return StandardCharsets.UTF_16BE;
+        } else if (startsWith(prefix, 0xFF, 0xFE)) {
+            is.skip(2);
+            return StandardCharsets.UTF_16LE;
+        }
+
+        Charset cs = forName(declared);
+        if (cs != null)
+            return cs;
+
+        // Pages that get this far are ASCII compatible, so a single byte charset reads the tags
+        Matcher m = META_CHARSET.matcher(new String(prefix, StandardCharsets.ISO_8859_1));
+        if (m.find() && (cs = forName(m.group(1))) != null)
+            // A page read well enough to find the tag can't really be UTF-16
+            return cs.name().startsWith("UTF-16") ? StandardCharsets.UTF_8 : cs;
+        return StandardCharsets.UTF_8;
+    }
+
+    private static Charset forName(String charset) {
+        if (charset == null)
+            return null;
+        try {
+            return Charset.forName(charset);
+        } catch (IllegalArgumentException e) {
+            Logs.LOG.fine("Unknown charset " + charset);
+            return null;
+        }
+    }
+
+    private static boolean startsWith(byte[] bytes, int... prefix) {
+        if (bytes.length < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; i++)
+            if ((bytes[i] & 0xFF) != prefix[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * Reads the name and attributes of an opening tag, after the {@code <}
+     */
+    private void readTag(int c) throws IOException {
+        String name = readName(c).toLowerCase();
+        String wanted = null;
+        if (name.equals("a") && type != WebpageCrawler.LinkType.Image
+                || name.equals("base"))
+            wanted = "href";
+        else if (name.equals("img") && type != WebpageCrawler.LinkType.Anchor)
+            wanted = "src";
+
+        while ((c = skipSpace()) != -1 && c != '>') {
+            if (c == '/')
+                continue;
+            String attr = readName(c);
+            c = skipSpace();
+            if (c != '=') {
+                if (c != -1)
+                    pos--;
+                continue;
+            }
+            readValue();
+            if (wanted != null && attr.equalsIgnoreCase(wanted)) {
+                found(name, decode(value).trim());
+                wanted = null;
+            }
+        }
+
+        if (name.equals("script") || name.equals("style"))
+            skipRawText(name);
+    }
+
+    private void found(String tag, String address) throws IOException {
+        if (address.isEmpty())
+            return;
+        URL url;
+        try {
+            url = new URL(base, address);
+        } catch (MalformedURLException e) {
+            return;     // Unsupported protocols such as javascript:
+        }
+        if (tag.equals("base")) {
+            base = url;
+            return;
+        }
+        if (!seen.add(url.toString()))
+            return;
+        count++;
+        try {
+            consumer.onComplete(url);
+        } catch (Exception e) {
+            Logs.LOG.exception(e);
+        }
+    }
+
+    /**
+     * Reads an attribute value after the {@code =}, quoted or not, into {@link #value}
+     */
+    private void readValue() throws IOException {
+        value.setLength(0);
+        int c = skipSpace();
+        if (c == '"' || c == '\'') {
+            int quote = c;
+            while ((c = read()) != -1 && c != quote)
+                value.append((char) c);
+            return;
+        }
+        while (c != -1 && c != '>' && !Character.isWhitespace(c)) {
+            value.append((char) c);
+            c = read();
+        }
+        if (c == '>')
+            pos--;
+    }
+
+    /**
+     * Reads a tag or attribute name, keeping at most the first few characters
+     */
+    private String readName(int c) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (c != -1 && c != '>' && c != '=' && c != '/' && !Character.isWhitespace(c)) {
+            if (sb.length() < MAX_NAME)
+                sb.append((char) c);
+            c = read();
+        }
+        if (c != -1)
+            pos--;
+        return sb.toString();
+    }
+
+    /**
+     * Skips a comment or declaration, after the {@code <!}
+     */
+    private void skipMarkup() throws IOException {
+        int c = read();
+        if (c == '-' && (c = read()) == '-') {
+            int dashes = 0;
+            while ((c = read()) != -1) {
+                if (c == '>' && dashes >= 2)
+                    return;
+                dashes = c == '-' ? dashes + 1 : 0;
+            }
+            return;
+        }
+        if (c != '>')
+            skipTo('>');
+    }
+
+    /**
+     * Skips the contents of a script or style element up to its closing tag
+     */
+    private void skipRawText(String name) throws IOException {
+        int c;
+        while ((c = read()) != -1) {
+            if (c != '<' || (c = read()) != '/')
+                continue;
+            int i = 0;
+            while (i < name.length() && Character.toLowerCase(c = read()) == name.charAt(i))
+                i++;
+            if (i == name.length()) {
+                skipTo('>');
+                return;
+            }
+            if (c == -1)
+                return;
+            pos--;
+        }
+    }
+
+    private void skipTo(char end) throws IOException {
+        int c;
+        while ((c = read()) != -1 && c != end) ;
+    }
+
+    private int skipSpace() throws IOException {
+        int c;
+        while ((c = read()) != -1 && Character.isWhitespace(c)) ;
+        return c;
+    }
+
+    private int read() throws IOException {
+        if (pos == len) {
+            len = in.read(buf, 0, buf.length);
+            pos = 0;
+            if (len <= 0) {
+                len = 0;
+                return -1;
+            }
+        }
+        return buf[pos++];
+    }
+
+    private static boolean isLetter(int c) {
+        return c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z';
+    }
+
+    /**
+     * Replaces the character references that commonly appear in links
+     */
+    private static String decode(CharSequence s) {
+        StringBuilder sb = null;
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            int semi;
+            if (ch != '&' || (semi = indexOf(s, ';', i + 1, i + 10)) < 0) {
+                if (sb != null)
+                    sb.append(ch);
+                continue;
+            }
+            String ref = s.subSequence(i + 1, semi).toString();
+            int code = -1;
+            switch (ref) {
+                case "amp": code = '&'; break;
+                case "quot": code = '"'; break;
+                case "apos": code = '\''; break;
+                case "lt": code = '<'; break;
+                case "gt": code = '>'; break;
+                case "nbsp": code = ' '; break;
+                default:
+                    try {
+                        if (ref.startsWith("#x") || ref.startsWith("#X"))
+                            code = Integer.parseInt(ref.substring(2), 16);
+                        else if (ref.startsWith("#"))
+                            code = Integer.parseInt(ref.substring(1));
+                    } catch (NumberFormatException e) {
+                        code = -1;
+                    }
+            }
+            if (code < 0 || !Character.isValidCodePoint(code)) {
+                if (sb != null)
+                    sb.append(ch);
+                continue;
+            }
+            if (sb == null)
+                sb = new StringBuilder(s.length()).append(s, 0, i);
+            sb.appendCodePoint(code);
+            i = semi;
+        }
+        return sb != null ? sb.toString() : s.toString();
+    }
+
+    private static int indexOf(CharSequence s, char ch, int from, int to) {
+        for (int i = from; i < Math.min(to, s.length()); i++)
+            if (s.charAt(i) == ch)
+                return i;
+        return -1;
+    }
+}
@@ -0,0 +1,22 @@
+package net.frebib.sscdownloader;
+
+import net.frebib.util.Log;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.logging.Level;
+
+/**
+ * Holds the {@link Log} shared by the whole downloader. Kept apart from
+ * the GUI so the downloading classes can be used without it
+ */
+public final class Logs {
+    /**
+     * The downloader log, written to a new file in {@code log/} for each run
+     */
+    public static final Log LOG = new Log(Level.FINEST)
+            .setLogOutput(new SimpleDateFormat("'log/downloader'yyyy-MM-dd hh-mm-ss'.log'")
+                    .format(new Date()));
+
+    private Logs() { }
+}
@@ -3,6 +3,7 @@ package net.frebib.sscdownloader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.regex.Pattern;
 import java.util.stream.Collector;
 import java.util.stream.Collectors;
 
@@ -11,11 +12,14 @@ import java.util.stream.Collectors;
  * and matching file extensions
  */
 public class MimeType {
+    private static final Pattern VALID = Pattern.compile("^[a-zA-Z*]+/[a-zA-Z-.+*]+[\\s?;*]?(\\s*?.*)");
+
     /**
      * A {@link MimeType} that matches any file type
      */
     public static final MimeType WILDCARD = new MimeType("*/*");
     private String mime;
+    private String[] mimeParts;
     private ArrayList<String> exts;
 
     /**
@@ -28,6 +32,7 @@ public class MimeType {
         if (!isValid(mimetype))
             throw new IllegalArgumentException("\"" + mimetype + "\" is not a valid Mime Type");
         mime = mimetype;
+        mimeParts = split(mimetype);
         exts = new ArrayList<>();
         exts.addAll(Arrays.asList(extensions)
                 .stream()
@@ -97,8 +102,8 @@ public class MimeType {
         if (!isValid(mimetype))
             return false;
 
-        String[] parts = mimetype.split(";")[0].split("/");
-        String[] thisparts = mime.split(";")[0].split("/");
+        String[] parts = split(mimetype);
+        String[] thisparts = mimeParts;
 
         // TODO: Update this to work with partial wildcard matching such as "text/ht*"
         boolean validA = parts[0].equalsIgnoreCase(thisparts[0]) || parts[0].equals("*") || thisparts[0].equals("*");
@@ -106,6 +111,15 @@ public class MimeType {
         return  validA && validB;
     }
 
+    /**
+     * Splits a valid mimetype into its type and subtype, ignoring any parameters
+     * @param mimetype a mimetype that {@link #isValid(String)}
+     * @return the type and subtype
+     */
+    static String[] split(String mimetype) {
+        return mimetype.split(";")[0].split("/");
+    }
+
     /**
      * Gets the first extension that matches the {@link MimeType}
      * @return the first extension that matches or null if there are none
@@ -121,7 +135,7 @@ public class MimeType {
      * @return true if the {@code mimetype} is valid
      */
     public static boolean isValid(String mimetype) {
-        return mimetype != null && mimetype.matches("^[a-zA-Z*]+/[a-zA-Z-.+*]+[\\s?;*]?(\\s*?.*)");
+        return mimetype != null && VALID.matcher(mimetype).matches();
     }
 
     @Override
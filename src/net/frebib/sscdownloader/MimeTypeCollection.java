@@ -2,13 +2,18 @@ package net.frebib.sscdownloader;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 /**
  * Represents an arbitrary group of {@link MimeType}s in a collection
- * Contains functions to find and match types and extensions
+ * Contains functions to find and match types and extensions.
+ * Lookups use an index of the types that is built on first use
+ * and rebuilt after the collection changes
  */
 public class MimeTypeCollection {
     /**
@@ -64,6 +69,7 @@ public class MimeTypeCollection {
     private String name;
     private ArrayList<MimeType> mimes;
     private LinkedHashMap<String, MimeType> extMap, mimeMap;
+    private volatile MimeIndex index;
 
     /**
      * Creates an empty {@link MimeTypeCollection}
@@ -101,6 +107,7 @@ public class MimeTypeCollection {
     public MimeTypeCollection add(MimeType mime) {
         if (mime == null) return this;
         mimes.add(mime);
+        index = null;
         mimeMap.put(mime.getMime(), mime);
         mime.getExtensions()
                 .stream()
@@ -133,8 +140,7 @@ public class MimeTypeCollection {
      * @return true if the mimetype is in the collection
      */
     public boolean hasMime(String mime) {
-        return mimeMap.keySet().contains(mime) ||
-               mimes.stream().filter(m -> m.matches(mime)).count() > 0;
+        return mime != null && (mimeMap.containsKey(mime) || compiled().find(mime) >= 0);
     }
 
     /**
@@ -146,7 +152,10 @@ public class MimeTypeCollection {
         // The "null ?? notnull" coalescing operator
         // would be amazing right about now
         MimeType mt = mimeMap.get(mime);
-        return (mt != null ? mt : mimes.stream().filter(m -> m.matches(mime)).findFirst().orElse(null));
+        if (mt != null || mime == null)
+            return mt;
+        int pos = compiled().find(mime);
+        return pos >= 0 ? mimes.get(pos) : null;
     }
 
     /**
@@ -157,6 +166,13 @@ public class MimeTypeCollection {
         return mimes;
     }
 
+    private MimeIndex compiled() {
+        MimeIndex idx = index;
+        if (idx == null)
+            index = idx = new MimeIndex(mimes);
+        return idx;
+    }
+
     @Override
     public String toString() {
         return name != null ? name : mimes.stream()
@@ -165,4 +181,95 @@ public class MimeTypeCollection {
                 .map(s -> '.' + s)
                 .collect(Collectors.joining(", "));
     }
+
+    /**
+     * The types of a collection sorted into buckets by which half is a wildcard,
+     * so a lookup is a few hash lookups instead of a scan. Each bucket keeps the
+     * position of the first matching type, so the first match is still found.
+     * Recent lookups, parameters and all, are remembered
+     */
+    private static final class MimeIndex {
+        private static final int MEMO_SIZE = 256;
+
+        private final Map<String, Integer> exact, typeWild, subtypeWild, types, subtypes;
+        private final Map<String, Integer> memo;
+        private final int any, first;
+
+        MimeIndex(List<MimeType> mimes) {
+            exact = new HashMap<>();
+            typeWild = new HashMap<>();
+            subtypeWild = new HashMap<>();
+            types = new HashMap<>();
+            subtypes = new HashMap<>();
+            memo = new ConcurrentHashMap<>();
+
+            int any = -1;
+            for (int i = 0; i < mimes.size(); i++) {
+                String[] parts = MimeType.split(mimes.get(i).getMime());
+                String type = fold(parts[0]), subtype = fold(parts[1]);
+                types.putIfAbsent(type, i);
+                subtypes.putIfAbsent(subtype, i);
+                if (type.equals("*") && subtype.equals("*")) {
+                    if (any < 0)
+                        any = i;
+                } else if (type.equals("*"))
+                    subtypeWild.putIfAbsent(subtype, i);
+                else if (subtype.equals("*"))
+                    typeWild.putIfAbsent(type, i);
+                else
+                    exact.putIfAbsent(type + '/' + subtype, i);
+            }
+            this.any = any;
+            this.first = mimes.isEmpty() ? -1 : 0;
+        }
+
+        /**
+         * Finds the first type that matches a mimetype, following {@link MimeType#matches(String)}
+         * @param mime the mimetype, which may have parameters
+         * @return the position of the type, or -1 if none match
+         */
+        int find(String mime) {
+            Integer pos = memo.get(mime);
+            if (pos == null) {
+                pos = lookup(mime);
+                if (memo.size() >= MEMO_SIZE)
+                    memo.clear();
+                memo.put(mime, pos);
+            }
+            return pos;
+        }
+
+        private int lookup(String mime) {
+            if (!MimeType.isValid(mime))
+                return -1;
+            String[] parts = MimeType.split(mime);
+            String type = fold(parts[0]), subtype = fold(parts[1]);
+            boolean anyType = type.equals("*"), anySubtype = subtype.equals("*");
+
+            if (anyType && anySubtype)
+                return first;
+            if (anyType)
+                return earliest(earliest(-1, subtypes.get(subtype)), subtypes.get("*"));
+            if (anySubtype)
+                return earliest(earliest(-1, types.get(type)), types.get("*"));
+
+            int pos = earliest(any, exact.get(type + '/' + subtype));
+            pos = earliest(pos, typeWild.get(type));
+            return earliest(pos, subtypeWild.get(subtype));
+        }
+
+        private static int earliest(int pos, Integer other) {
+            return other != null && (pos < 0 || other < pos) ? other : pos;
+        }
+
+        /**
+         * Folds the case of a string the way {@link String#equalsIgnoreCase(String)} compares it
+         */
+        private static String fold(String s) {
+            char[] chars = s.toCharArray();
+            for (int i = 0; i < chars.length; i++)
+                chars[i] = Character.toLowerCase(Character.toUpperCase(chars[i]));
+            return new String(chars);
+        }
+    }
 }
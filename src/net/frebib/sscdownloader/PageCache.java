@@ -0,0 +1,163 @@
+package net.frebib.sscdownloader;
+
+import net.frebib.sscdownloader.http.Response;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers the links found on crawled pages together with the validators
+ * of the response they came from. A page that is fetched again is requested
+ * conditionally, and if the server answers {@code 304 Not Modified} the
+ * remembered links are used without downloading or parsing the page
+ */
+public class PageCache {
+    private static volatile PageCache current;
+
+    private final File dir;
+
+    /**
+     * Creates a cache that keeps its entries in a directory
+     * @param dir directory to keep the entries in, created if it doesn't exist
+     */
+    public PageCache(File dir) {
+        this.dir = dir;
+        if (!dir.isDirectory() && !dir.mkdirs())
+            Logs.LOG.warning("Unable to create page cache " + dir);
+    }
+
+    /**
+     * Gets the cache used by {@link WebpageCrawler}
+     * @return the cache, or null if pages aren't cached
+     */
+    public static PageCache getDefault() {
+        return current;
+    }
+
+    /**
+     * Changes the cache used by {@link WebpageCrawler}
+     * @param cache the cache, or null to stop caching pages
+     */
+    public static void setDefault(PageCache cache) {
+        current = cache;
+    }
+
+    /**
+     * Reads the entry for a page
+     * @param url address of the page
+     * @param type types of links that were extracted
+     * @return the entry, or null if the page isn't cached
+     */
+    public Entry get(URL url, WebpageCrawler.LinkType type) {
+        File file = fileOf(url, type);
+        if (!file.isFile())
+            return null;
+        try (BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            if (!url.toString().equals(in.readLine()))
+                return null;    // A different page with the same hash
+            Entry entry = new Entry(emptyToNull(in.readLine()), emptyToNull(in.readLine()));
+            for (String line; (line = in.readLine()) != null; )
+                entry.links.add(new URL(line));
+            return entry;
+        } catch (IOException e) {
+            Logs.LOG.warning("Ignoring unreadable cached page " + file.getName() + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Stores the links found on a page, if the response can be revalidated
+     * @param url address of the page
+     * @param type types of links that were extracted
+     * @param res the response the page came from
+     * @param links the links found on the page
+     */
+    public void put(URL url, WebpageCrawler.LinkType type, Response res, List<URL> links) {
+        String etag = res.getHeader("ETag"), lastModified = res.getHeader("Last-Modified");
+        if (etag == null && lastModified == null)
+            return;
+
+        // Each writer gets its own temporary file, so pages stored at once don't mix
+        File file = fileOf(url, type);
+        Path tmp = null;
+        try {
+            tmp = Files.createTempFile(dir.toPath(), file.getName(), ".tmp");
+            try (BufferedWriter out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                out.write(url.toString());
+                out.newLine();
+                out.write(etag != null ? etag : "");
+                out.newLine();
+                out.write(lastModified != null ? lastModified : "");
+                out.newLine();
+                for (URL link : links) {
+                    out.write(link.toString());
+                    out.newLine();
+                }
+            }
+            Files.move(tmp, file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Logs.LOG.exception(e);
+            if (tmp != null)
+                tmp.toFile().delete();
+        }
+    }
+
+    private File fileOf(URL url, WebpageCrawler.LinkType type) {
+        String key = url.toString();
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return new File(dir, String.format("%016x-%s.links", h, type.name().toLowerCase()));
+    }
+
+    private static String emptyToNull(String s) {
+        return s == null || s.isEmpty() ? null : s;
+    }
+
+    /**
+     * The validators and links remembered for a page
+     */
+    public static class Entry {
+        private final String etag, lastModified;
+        private final List<URL> links;
+
+        public Entry(String etag, String lastModified) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.links = new ArrayList<>();
+        }
+
+        /**
+         * Gets the headers that make a request conditional on the page having changed
+         */
+        public Map<String, String> getConditionalHeaders() {
+            Map<String, String> headers = new HashMap<>();
+            if (etag != null)
+                headers.put("If-None-Match", etag);
+            if (lastModified != null)
+                headers.put("If-Modified-Since", lastModified);
+            return headers;
+        }
+
+        /**
+         * Gets the links that were found on the page
+         */
+        public List<URL> getLinks() {
+            return links;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package net.frebib.sscdownloader;
+
+import net.frebib.sscdownloader.concurrent.Completion;
+import net.frebib.sscdownloader.concurrent.Throwable;
+import net.frebib.sscdownloader.http.Transport;
+import net.frebib.sscdownloader.http.Transports;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Crawls nested pages, such as directory listings, starting from one page.
+ * Pages are fetched and parsed in parallel on a work-stealing pool, so idle
+ * threads take pages queued under a busy one, and links are handled while
+ * each page is still downloading. Links to pages in scope are
+ * followed up to a maximum depth, and every other link is passed on as a
+ * file as soon as it is found, once per link. The shallowest depth each page
+ * has been followed at is remembered, and a page reached again by a shorter
+ * path is followed again, so which pages are crawled doesn't depend on the
+ * order they are reached in
+ */
+public class SiteCrawler {
+    private static final String[] PAGE_EXTENSIONS = {
+            ".html", ".htm", ".shtml", ".xhtml", ".php", ".asp", ".aspx", ".jsp"
+    };
+
+    private final ForkJoinPool pool;
+    private final VisitedSet emitted;
+    private final Map<String, Integer> followed;
+    private final List<Completion<URL>> found;
+    private final List<Completion<Integer>> dones;
+    private final AtomicInteger pages, files, failures;
+    private Transport transport;
+    private WebpageCrawler.LinkType type;
+    private Throwable error;
+    private int maxDepth, timeout;
+    private boolean sameHost;
+    private String prefix;
+    private volatile boolean cancelled;
+
+    /**
+     * Creates a new SiteCrawler that follows links one level deep
+     * @param threadCount amount of pages to fetch at once
+     */
+    public SiteCrawler(int threadCount) {
+        this.pool = new ForkJoinPool(threadCount);
+        this.emitted = new VisitedSet();
+        this.followed = new ConcurrentHashMap<>();
+        this.found = new ArrayList<>();
+        this.dones = new ArrayList<>();
+        this.pages = new AtomicInteger();
+        this.files = new AtomicInteger();
+        this.failures = new AtomicInteger();
+        this.transport = Transports.getDefault();
+        this.type = WebpageCrawler.LinkType.Both;
+        this.maxDepth = 1;
+        this.timeout = 30000;
+        this.sameHost = true;
+    }
+
+    /**
+     * Sets how many levels of pages below the first are followed.
+     * At 0 only the first page is fetched, like {@link WebpageCrawler#parse(URL, WebpageCrawler.LinkType, int)}
+     * @param maxDepth the depth
+     * @return the SiteCrawler instance, for command chaining
+     */
+    public SiteCrawler maxDepth(int maxDepth) {
+        this.maxDepth = Math.max(0, maxDepth);
+        return this;
+    }
+
+    /**
+     * Sets whether pages on other hosts are followed. True by default
+     * @param sameHost true to only follow pages on the host of the first page
+     * @return the SiteCrawler instance, for command chaining
+     */
+    public SiteCrawler sameHost(boolean sameHost) {
+        this.sameHost = sameHost;
+        return this;
+    }
+
+    /**
+     * Only follows pages whose address starts with a prefix. Defaults to the
+     * directory of the first page, so parent directories aren't crawled
+     * @param prefix the prefix, or an empty string to follow any page
+     * @return the SiteCrawler instance, for command chaining
+     */
+    public SiteCrawler prefix(String prefix) {
+        this.prefix = prefix;
+        return this;
+    }
+
+    /**
+     * Sets the types of links to extract from each page
+     * @param type types of links
+     * @return the SiteCrawler instance, for command chaining
+     */
+    public SiteCrawler linkType(WebpageCrawler.LinkType type) {
+        this.type = type;
+        return this;
+    }
+
+    /**
+     * Sets how long to wait for each page to respond
+     * @param timeoutMillis the timeout in milliseconds
+     * @return the SiteCrawler instance, for command chaining
+     */
+    public SiteCrawler timeout(int timeoutMillis) {
+        this.timeout = timeoutMillis;
+        return this;
+    }
+
+    /**
+     * Sets the {@link Transport} that fetches pages
+     * @param transport the transport
+     * @return the SiteCrawler instance, for command chaining
+     */
+    public SiteCrawler setTransport(Transport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    /**
+     * Adds a {@link Completion} callback that is called with each file link as it is found.
+     * Called from the crawling threads, possibly at the same time
+     * @param handler the callback
+     * @return the SiteCrawler instance, for command chaining
+     */
+    public SiteCrawler found(Completion<URL> handler) {
+        found.add(handler);
+        return this;
+    }
+
+    /**
+     * Adds a {@link Completion} callback that is called with the amount
+     * of files found, once every page has been crawled
+     * @param done the callback
+     * @return the SiteCrawler instance, for command chaining
+     */
+    public SiteCrawler done(Completion<Integer> done) {
+        dones.add(done);
+        return this;
+    }
+
+    /**
+     * Handles the first page failing to load. Pages below
+     * it that fail are logged and skipped
+     * @param error error handler
+     * @return the SiteCrawler instance, for command chaining
+     */
+    public SiteCrawler error(Throwable error) {
+        this.error = error;
+        return this;
+    }
+
+    /**
+     * Starts crawling asynchronously from a page
+     * @param root the first page
+     * @return the SiteCrawler instance, for command chaining
+     */
+    public SiteCrawler start(URL root) {
+        URL start = normalise(root);
+        if (prefix == null)
+            prefix = directoryOf(start);
+        follow(start, 0);
+
+        CompletableFuture.runAsync(() -> new PageTask(start, 0).invoke(), pool)
+                .whenComplete((v, e) -> finish());
+        return this;
+    }
+
+    /**
+     * Stops crawling. Pages being fetched are interrupted,
+     * and the completion callbacks won't be called
+     */
+    public void cancel() {
+        cancelled = true;
+        pool.shutdownNow();
+    }
+
+    /**
+     * Gets the amount of pages crawled so far
+     */
+    public int getPageCount() {
+        return pages.get();
+    }
+
+    /**
+     * Gets the amount of file links found so far
+     */
+    public int getFileCount() {
+        return files.get();
+    }
+
+    /**
+     * Gets the amount of pages that couldn't be fetched, including the first
+     */
+    public int getFailedCount() {
+        return failures.get();
+    }
+
+    private void finish() {
+        pool.shutdown();
+        if (cancelled)
+            return;
+        for (Completion<Integer> done : dones)
+            try {
+                done.onComplete(files.get());
+            } catch (Exception e) {
+                Logs.LOG.exception(e);
+            }
+    }
+
+    /**
+     * Records that a page is followed at a depth
+     * @return true if it hasn't been followed at this depth or shallower before
+     */
+    private boolean follow(URL url, int depth) {
+        boolean[] shallower = new boolean[1];
+        followed.compute(url.toString(), (k, d) -> {
+            shallower[0] = d == null || depth < d;
+            return shallower[0] ? depth : d;
+        });
+        return shallower[0];
+    }
+
+    private void emit(URL url) {
+        files.incrementAndGet();
+        for (Completion<URL> handler : found)
+            try {
+                handler.onComplete(url);
+            } catch (Exception e) {
+                Logs.LOG.exception(e);
+            }
+    }
+
+    /**
+     * Gets whether a link is to a page to follow, rather than a file:
+     * a directory or a document with a web page extension
+     */
+    private static boolean isPage(URL url) {
+        String path = url.getPath().toLowerCase();
+        if (path.isEmpty() || path.endsWith("/"))
+            return true;
+        for (String ext : PAGE_EXTENSIONS)
+            if (path.endsWith(ext))
+                return true;
+        return false;
+    }
+
+    private boolean inScope(URL url, URL parent) {
+        if (sameHost && !url.getHost().equalsIgnoreCase(parent.getHost()))
+            return false;
+        return url.toString().startsWith(prefix);
+    }
+
+    /**
+     * Drops the fragment of a link, and the query of a directory link
+     * since listings use it to sort the same entries
+     */
+    private static URL normalise(URL url) {
+        String file = url.getPath().endsWith("/") ? url.getPath() : url.getFile();
+        if (url.getRef() == null && file.equals(url.getFile()))
+            return url;
+        try {
+            return new URL(url.getProtocol(), url.getHost(), url.getPort(), file);
+        } catch (MalformedURLException e) {
+            return url;
+        }
+    }
+
+    private static String directoryOf(URL url) {
+        String s = url.toString();
+        int end = s.lastIndexOf('/');
+        return end > s.indexOf("//") + 1 ? s.substring(0, end + 1) : s;
+    }
+
+    /**
+     * Fetches one page, passes on its files, then crawls its pages in parallel
+     */
+    @SuppressWarnings("serial")    // Only ever run in the pool, never serialised
+    private class PageTask extends RecursiveAction {
+        private final URL page;
+        private final int depth;
+
+        PageTask(URL page, int depth) {
+            this.page = page;
+            this.depth = depth;
+        }
+
+        @Override
+        protected void compute() {
+            if (cancelled)
+                return;
+
+            // Links are handled while the page downloads, and pages below
+            // it are forked straight away for idle threads to steal
+            List<PageTask> children = new ArrayList<>();
+            int links;
+            try {
+                links = WebpageCrawler.parse(transport, page, type, timeout, link -> {
+                    if (cancelled)
+                        return;
+                    URL url = normalise(link);
+                    if (depth < maxDepth && isPage(url) && inScope(url, page)) {
+                        // Followed again if this path is shorter, even if it was passed on as a file
+                        if (follow(url, depth + 1)) {
+                            PageTask child = new PageTask(url, depth + 1);
+                            children.add(child);
+                            child.fork();
+                        }
+                    } else if (!followed.containsKey(url.toString()) && emitted.add(url))
+                        emit(url);  // Passed on as a file, as a single page would be
+                });
+            } catch (IOException e) {
+                if (!cancelled) {
+                    failures.incrementAndGet();
+                    if (depth == 0 && error != null)
+                        error.onError(e);
+                    else
+                        Logs.LOG.warning("Unable to crawl " + page + ": " + e.getMessage());
+                }
+                links = -1;
+            }
+            if (links >= 0 && !cancelled) {
+                pages.incrementAndGet();
+                Logs.LOG.fine("Crawled " + page + " at depth " + depth + ", " + links + " links");
+            }
+            for (PageTask child : children)
+                child.join();
+        }
+    }
+}
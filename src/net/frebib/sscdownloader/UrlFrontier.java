@@ -0,0 +1,311 @@
+package net.frebib.sscdownloader;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A queue of links kept on disk in memory-mapped segment files, for jobs with
+ * more links than fit in the heap. Links are appended by any amount of producers
+ * and taken in bounded {@link Batch}es by any amount of consumers. A batch is
+ * only removed for good once it is committed, so after a restart the queue
+ * carries on from the first batch that wasn't committed. Segments are deleted
+ * once every link in them has been committed
+ */
+public class UrlFrontier implements Closeable {
+    /**
+     * The default size of each segment file, in bytes
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private static final int MAGIC = 0x55524C46;    // "URLF"
+    private static final int HEAD = 8, TAIL = 16, HEADER_SIZE = 64;
+    private static final int END_OF_SEGMENT = -1;
+
+    private final File dir;
+    private final int segmentSize;
+    private final MappedByteBuffer header;
+    private final Map<Integer, MappedByteBuffer> segments;
+    private final TreeMap<Long, Batch> outstanding;
+    private long read, tail;
+    private int firstSegment, available;
+    private boolean finished, closed;
+
+    /**
+     * Opens a frontier in a directory, carrying on from where it was left if it already exists
+     * @param dir directory to keep the segment files in
+     * @throws IOException if the directory can't be created or read
+     */
+    public UrlFrontier(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Opens a frontier in a directory, carrying on from where it was left if it already exists
+     * @param dir directory to keep the segment files in
+     * @param segmentSize size of each segment file in bytes, fixed when the frontier is created
+     * @throws IOException if the directory can't be created or read
+     */
+    public UrlFrontier(File dir, int segmentSize) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create frontier directory " + dir);
+        this.dir = dir;
+        this.segments = new HashMap<>();
+        this.outstanding = new TreeMap<>();
+        this.header = map(new File(dir, "frontier.head"), HEADER_SIZE);
+
+        if (header.getInt(0) == MAGIC) {
+            this.segmentSize = header.getInt(4);
+            this.read = header.getLong(HEAD);
+            this.tail = header.getLong(TAIL);
+        } else {
+            this.segmentSize = segmentSize;
+            header.putInt(4, segmentSize);
+            header.putLong(HEAD, 0);
+            header.putLong(TAIL, 0);
+            header.putInt(0, MAGIC);
+        }
+        this.firstSegment = segmentOf(read);
+
+        // Count what is left, which also checks that the segments are intact
+        for (long pos = read; pos != tail; available++)
+            pos = skip(pos);
+        if (available > 0)
+            Logs.LOG.info("Resuming frontier " + dir + " with " + available + " links");
+    }
+
+    /**
+     * Adds a link to the end of the queue
+     * @param url the link
+     * @throws IOException if the link can't be written to disk
+     * @throws IllegalStateException if the frontier has been finished or closed
+     */
+    public synchronized void offer(URL url) throws IOException {
+        if (finished || closed)
+            throw new IllegalStateException("Frontier no longer accepts links");
+        byte[] bytes = url.toString().getBytes(StandardCharsets.UTF_8);
+        int length = 4 + bytes.length;
+        if (length > segmentSize)
+            throw new IOException("Link is longer than a segment: " + url);
+
+        int seg = segmentOf(tail), off = offsetOf(tail);
+        if (off + length > segmentSize) {
+            if (off + 4 <= segmentSize)
+                segment(seg).putInt(off, END_OF_SEGMENT);
+            seg++;
+            off = 0;
+        }
+        MappedByteBuffer buf = segment(seg);
+        buf.put(off + 4, bytes);
+        buf.putInt(off, bytes.length);  // Written last, so a torn record reads as empty
+        tail = position(seg, off + length);
+        header.putLong(TAIL, tail);
+
+        available++;
+        notifyAll();
+    }
+
+    /**
+     * Takes up to {@code max} links from the front of the queue, waiting
+     * for some to be added if it is empty and hasn't been finished
+     * @param max the most links to take
+     * @return a batch of at least one link, or null once the frontier
+     *         has been finished and every link has been taken
+     * @throws InterruptedException if the thread is interrupted while waiting
+     * @throws IOException if the segments can't be read
+     */
+    public synchronized Batch take(int max) throws InterruptedException, IOException {
+        while (available == 0 && !finished && !closed)
+            wait();
+        return poll(max);
+    }
+
+    /**
+     * Takes up to {@code max} links from the front of the queue without waiting
+     * @param max the most links to take
+     * @return a batch of at least one link, or null if the queue is empty
+     * @throws IOException if the segments can't be read
+     */
+    public synchronized Batch poll(int max) throws IOException {
+        if (available == 0 || closed)
+            return null;
+
+        Batch batch = new Batch(read);
+        while (batch.urls.size() < max && read != tail) {
+            read = alignRecord(read);
+            int seg = segmentOf(read), off = offsetOf(read);
+            MappedByteBuffer buf = segment(seg);
+            byte[] bytes = new byte[buf.getInt(off)];
+            buf.get(off + 4, bytes);
+            read = position(seg, off + 4 + bytes.length);
+            available--;
+
+            String address = new String(bytes, StandardCharsets.UTF_8);
+            try {
+                batch.urls.add(new URL(address));
+            } catch (MalformedURLException e) {
+                Logs.LOG.warning("Dropping unreadable link from frontier: " + address);
+            }
+        }
+        outstanding.put(batch.start, batch);
+        return batch;
+    }
+
+    /**
+     * Marks the end of the links. Consumers waiting in {@link #take(int)}
+     * are given null once the rest of the links have been taken
+     */
+    public synchronized void finish() {
+        finished = true;
+        notifyAll();
+    }
+
+    /**
+     * Gets the amount of links that haven't been taken yet
+     */
+    public synchronized int size() {
+        return available;
+    }
+
+    /**
+     * Gets whether every link has been taken and committed
+     */
+    public synchronized boolean isEmpty() {
+        return available == 0 && outstanding.isEmpty();
+    }
+
+    /**
+     * Flushes the queue to disk and releases the segments. Links in batches
+     * that haven't been committed are taken again when the frontier is reopened
+     */
+    @Override
+    public synchronized void close() {
+        if (closed)
+            return;
+        closed = true;
+        segments.values().forEach(MappedByteBuffer::force);
+        header.force();
+        segments.clear();
+        notifyAll();
+    }
+
+    private synchronized void commit(Batch batch) {
+        if (outstanding.remove(batch.start) == null || closed)
+            return;
+        long head = outstanding.isEmpty() ? read : outstanding.firstKey();
+        header.putLong(HEAD, head);
+
+        // Segments behind the head won't be read again
+        int headSegment = segmentOf(head);
+        for (; firstSegment < headSegment; firstSegment++) {
+            segments.remove(firstSegment);
+            File file = segmentFile(firstSegment);
+            if (file.exists() && !file.delete())
+                Logs.LOG.warning("Unable to delete frontier segment " + file.getName());
+        }
+    }
+
+    /**
+     * Moves a position past the end of its segment if there are no more records in it
+     */
+    private long alignRecord(long pos) throws IOException {
+        int seg = segmentOf(pos), off = offsetOf(pos);
+        if (off + 4 > segmentSize || segment(seg).getInt(off) == END_OF_SEGMENT)
+            return position(seg + 1, 0);
+        return pos;
+    }
+
+    private long skip(long pos) throws IOException {
+        pos = alignRecord(pos);
+        int seg = segmentOf(pos), off = offsetOf(pos);
+        int length = segment(seg).getInt(off);
+        if (length <= 0 || off + 4 + length > segmentSize)
+            throw new IOException("Corrupt frontier segment " + segmentFile(seg));
+        return position(seg, off + 4 + length);
+    }
+
+    private MappedByteBuffer segment(int seg) throws IOException {
+        MappedByteBuffer buf = segments.get(seg);
+        if (buf == null) {
+            buf = map(segmentFile(seg), segmentSize);
+            segments.put(seg, buf);
+        }
+        return buf;
+    }
+
+    private File segmentFile(int seg) {
+        return new File(dir, String.format("segment-%06d.dat", seg));
+    }
+
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            // The mapping stays valid after the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static long position(int seg, int off) {
+        return (long) seg << 32 | off;
+    }
+
+    private static int segmentOf(long pos) {
+        return (int) (pos >>> 32);
+    }
+
+    private static int offsetOf(long pos) {
+        return (int) pos;
+    }
+
+    /**
+     * Links taken from the frontier together. Commit the batch once
+     * the links have been handled so they aren't taken again
+     */
+    public class Batch implements Iterable<URL> {
+        private final List<URL> urls;
+        private final long start;
+
+        private Batch(long start) {
+            this.urls = new ArrayList<>();
+            this.start = start;
+        }
+
+        /**
+         * Removes the links from the frontier for good. Batches
+         * can be committed in any order and from any thread
+         */
+        public void commit() {
+            UrlFrontier.this.commit(this);
+        }
+
+        /**
+         * Gets the links in the batch
+         */
+        public List<URL> getURLs() {
+            return urls;
+        }
+
+        /**
+         * Gets the amount of links in the batch
+         */
+        public int size() {
+            return urls.size();
+        }
+
+        @Override
+        public Iterator<URL> iterator() {
+            return urls.iterator();
+        }
+    }
+}
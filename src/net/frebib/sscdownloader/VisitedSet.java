@@ -0,0 +1,159 @@
+package net.frebib.sscdownloader;
+
+import net.frebib.util.BloomFilter;
+
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The set of links that have already been seen by a {@link SiteCrawler}.
+ * Each link is reduced to a 64-bit fingerprint, kept in primitive arrays at
+ * around 16 bytes a link, so the set is exact until it holds {@code exactLimit}
+ * links. Past that only a fixed size {@link BloomFilter} is updated, so memory
+ * stays bounded and a new link is rarely mistaken for one already seen
+ */
+public class VisitedSet {
+    private static final int STRIPES = 64;
+
+    private final BloomFilter bloom;
+    private final Stripe[] stripes;
+    private final AtomicInteger exact;
+    private final int exactLimit;
+
+    /**
+     * Creates an empty set
+     * @param expected amount of links expected, used to size the {@link BloomFilter}
+     * @param exactLimit amount of links to remember exactly before relying on the filter
+     */
+    public VisitedSet(long expected, int exactLimit) {
+        this.bloom = new BloomFilter(expected, 0.001);
+        this.stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+        this.exact = new AtomicInteger();
+        this.exactLimit = exactLimit;
+    }
+
+    /**
+     * Creates an empty set sized for a million links
+     */
+    public VisitedSet() {
+        this(1 << 20, 1 << 20);
+    }
+
+    /**
+     * Adds a link to the set
+     * @param url the link
+     * @return true if the link hadn't been added before
+     */
+    public boolean add(URL url) {
+        return add(url.toString());
+    }
+
+    /**
+     * Adds a link to the set
+     * @param url the link
+     * @return true if the link hadn't been added before
+     */
+    public boolean add(String url) {
+        long fp = fingerprint(url);
+        boolean isNew = bloom.put(mix(fp));
+        if (exact.get() >= exactLimit)
+            return isNew;   // Full, fall back to the filter alone
+
+        Stripe stripe = stripes[(int) (fp >>> 58)];
+        synchronized (stripe) {
+            if (!stripe.add(fp))
+                return false;
+        }
+        exact.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Gets whether a link has been added. Links that definitely
+     * haven't been added are answered without locking
+     * @param url the link
+     * @return true if the link has been added
+     */
+    public boolean contains(String url) {
+        long fp = fingerprint(url);
+        if (!bloom.mightContain(mix(fp)))
+            return false;
+        if (exact.get() >= exactLimit)
+            return true;
+
+        Stripe stripe = stripes[(int) (fp >>> 58)];
+        synchronized (stripe) {
+            return stripe.contains(fp);
+        }
+    }
+
+    /**
+     * Gets the amount of links remembered exactly
+     */
+    public int getExactSize() {
+        return exact.get();
+    }
+
+    /**
+     * Hashes a link to 64 bits with FNV-1a, mixed so every bit is usable
+     */
+    private static long fingerprint(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h = mix(h);
+        return h == 0 ? 1 : h;  // 0 marks an empty slot
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * An open addressed hash set of fingerprints
+     */
+    private static class Stripe {
+        private long[] slots = new long[64];
+        private int size;
+
+        boolean add(long fp) {
+            if (size * 2 >= slots.length)
+                grow();
+            int i = find(slots, fp);
+            if (slots[i] == fp)
+                return false;
+            slots[i] = fp;
+            size++;
+            return true;
+        }
+
+        boolean contains(long fp) {
+            return slots[find(slots, fp)] == fp;
+        }
+
+        private void grow() {
+            long[] old = slots;
+            slots = new long[old.length * 2];
+            for (long fp : old)
+                if (fp != 0)
+                    slots[find(slots, fp)] = fp;
+        }
+
+        private static int find(long[] slots, long fp) {
+            int mask = slots.length - 1;
+            int i = (int) fp & mask;
+            while (slots[i] != 0 && slots[i] != fp)
+                i = (i + 1) & mask;
+            return i;
+        }
+    }
+}
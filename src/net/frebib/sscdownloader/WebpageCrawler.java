@@ -1,15 +1,24 @@
 package net.frebib.sscdownloader;
 
-import net.frebib.sscdownloader.gui.DownloadClient;
-import org.jsoup.Connection;
-import org.jsoup.helper.HttpConnection;
+import net.frebib.sscdownloader.concurrent.Completion;
+import net.frebib.sscdownloader.concurrent.Worker;
+import net.frebib.sscdownloader.http.Response;
+import net.frebib.sscdownloader.http.Transport;
+import net.frebib.sscdownloader.http.Transports;
+import net.frebib.sscdownloader.metrics.Counter;
+import net.frebib.sscdownloader.metrics.Histogram;
+import net.frebib.sscdownloader.metrics.Metrics;
 import org.jsoup.nodes.Document;
 import org.jsoup.select.Elements;
 
 import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 /**
@@ -17,19 +26,107 @@ import java.util.stream.Collectors;
  * links in <a/> or <img/> HTML tags
  */
 public class WebpageCrawler {
+    private static final Metrics METRICS = Metrics.getDefault();
+    private static final Counter PAGES = METRICS.counter("crawl.pages");
+    private static final Histogram PAGE_TTFB = METRICS.histogram("crawl.ttfb");
+    private static final Histogram PAGE_TIME = METRICS.histogram("crawl.page");
 
     /**
      * Extracts all links from a given {@link URL}
      * @param location webpage to fetch and extract links from
      * @param type types of links to extract
-     * @param timeoutMillis
-     * @return
+     * @param timeoutMillis how long to wait for the webpage to respond
+     * @return a list of links
      * @throws IOException if the connection fails
      */
     public static List<URL> parse(URL location, LinkType type, int timeoutMillis) throws IOException {
-        Connection con = HttpConnection.connect(location);
-        con.timeout(timeoutMillis);
-        return parse(con.get(), type);
+        return parse(Transports.getDefault(), location, type, timeoutMillis);
+    }
+
+    /**
+     * Extracts all links from a given {@link URL}, fetched with a specific {@link Transport}
+     * @param transport transport to fetch the webpage with
+     * @param location webpage to fetch and extract links from
+     * @param type types of links to extract
+     * @param timeoutMillis how long to wait for the webpage to respond
+     * @return a list of links
+     * @throws IOException if the connection fails or the server responds with an error
+     */
+    public static List<URL> parse(Transport transport, URL location, LinkType type, int timeoutMillis) throws IOException {
+        List<URL> links = new ArrayList<>();
+        parse(transport, location, type, timeoutMillis, links::add);
+        return links;
+    }
+
+    /**
+     * Extracts links from a given {@link URL} while it downloads, passing each
+     * one on as soon as it is read rather than once the whole page has arrived
+     * @param location webpage to fetch and extract links from
+     * @param type types of links to extract
+     * @param timeoutMillis how long to wait for the webpage to respond
+     * @param consumer a {@link Completion} callback that is called with each distinct link
+     * @return the amount of links found
+     * @throws IOException if the connection fails or the server responds with an error
+     */
+    public static int parse(URL location, LinkType type, int timeoutMillis,
+                            Completion<URL> consumer) throws IOException {
+        return parse(Transports.getDefault(), location, type, timeoutMillis, consumer);
+    }
+
+    /**
+     * Extracts links from a given {@link URL} while it downloads with a specific {@link Transport}
+     * @param transport transport to fetch the webpage with
+     * @param location webpage to fetch and extract links from
+     * @param type types of links to extract
+     * @param timeoutMillis how long to wait for the webpage to respond
+     * @param consumer a {@link Completion} callback that is called with each distinct link
+     * @return the amount of links found
+     * @throws IOException if the connection fails or the server responds with an error
+     * @see LinkExtractor
+     * @see PageCache
+     */
+    public static int parse(Transport transport, URL location, LinkType type, int timeoutMillis,
+                            Completion<URL> consumer) throws IOException {
+        long start = System.nanoTime();
+        int count = fetch(transport, location, type, timeoutMillis, consumer);
+        PAGE_TIME.recordSince(start);
+        PAGES.inc();
+        return count;
+    }
+
+    private static int fetch(Transport transport, URL location, LinkType type, int timeoutMillis,
+                             Completion<URL> consumer) throws IOException {
+        PageCache cache = PageCache.getDefault();
+        PageCache.Entry cached = cache != null ? cache.get(location, type) : null;
+        Map<String, String> headers = cached != null
+                ? cached.getConditionalHeaders() : Collections.emptyMap();
+
+        try (Response res = send(transport, location, headers, timeoutMillis)) {
+            Worker.closeOnCancel(res);  // A cancelled crawl drops the connection
+            if (cached != null && res.getStatus() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Logs.LOG.fine("Page not modified, using cached links: " + location);
+                for (URL url : cached.getLinks())
+                    try {
+                        consumer.onComplete(url);
+                    } catch (Exception e) {
+                        Logs.LOG.exception(e);
+                    }
+                return cached.getLinks().size();
+            }
+            if (!res.isSuccess())
+                throw new IOException("HTTP error fetching URL: " + res.getStatus() + " " + location);
+            if (cache == null)
+                return new LinkExtractor(res.getURL(), type, consumer)
+                        .extract(res.getBody(), charsetOf(res.getContentType()));
+
+            List<URL> links = new ArrayList<>();
+            int count = new LinkExtractor(res.getURL(), type, url -> {
+                links.add(url);
+                consumer.onComplete(url);
+            }).extract(res.getBody(), charsetOf(res.getContentType()));
+            cache.put(location, type, res, links);
+            return count;
+        }
     }
 
     /**
@@ -72,12 +169,45 @@ public class WebpageCrawler {
             if (address.startsWith("//") && parent != null) // Add missing protocol
                 address = parent.split("//")[0] + address;  // if link is relative
 
-            DownloadClient.LOG.finest(address);
+            Logs.LOG.finest(address);
 
             return new URL(address);
         } catch (MalformedURLException e) {
             if (address.isEmpty())
-                DownloadClient.LOG.severe("Address is not valid: " + address);
+                Logs.LOG.severe("Address is not valid: " + address);
+        }
+        return null;
+    }
+
+    /**
+     * Requests a webpage, recording the time taken for the response to arrive
+     */
+    private static Response send(Transport transport, URL location, Map<String, String> headers,
+                                 int timeoutMillis) throws IOException {
+        long start = System.nanoTime();
+        try {
+            Response res = transport.send("GET", location, headers, timeoutMillis);
+            PAGE_TTFB.recordSince(start);
+            METRICS.response(location, res.getStatus());
+            return res;
+        } catch (IOException e) {
+            METRICS.failure(location);
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the charset parameter of a {@code Content-Type} header
+     * @param contentType the header value
+     * @return the charset, or null to detect it from the document
+     */
+    private static String charsetOf(String contentType) {
+        if (contentType == null)
+            return null;
+        for (String param : contentType.split(";")) {
+            param = param.trim();
+            if (param.regionMatches(true, 0, "charset=", 0, 8))
+                return param.substring(8).replace("\"", "").trim();
         }
         return null;
     }
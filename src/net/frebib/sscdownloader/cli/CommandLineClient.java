@@ -0,0 +1,421 @@
+package net.frebib.sscdownloader.cli;
+
+import net.frebib.sscdownloader.BandwidthLimiter;
+import net.frebib.sscdownloader.BufferPool;
+import net.frebib.sscdownloader.ContentIndex;
+import net.frebib.sscdownloader.DownloadPipeline;
+import net.frebib.sscdownloader.DownloadTask;
+import net.frebib.sscdownloader.Logs;
+import net.frebib.sscdownloader.MimeType;
+import net.frebib.sscdownloader.MimeTypeCollection;
+import net.frebib.sscdownloader.SiteCrawler;
+import net.frebib.sscdownloader.WebpageCrawler;
+import net.frebib.sscdownloader.concurrent.ThreadMode;
+import net.frebib.sscdownloader.metrics.Metrics;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Downloads files from the command line, without a display. Crawls each seed page,
+ * then evaluates and downloads the links that pass the filter with a
+ * {@link DownloadPipeline}, and exits with a summary. Doesn't use any
+ * Swing classes, so it starts quickly and runs on servers
+ */
+public class CommandLineClient {
+    /**
+     * Exit status when every page was crawled, every link evaluated and every accepted file downloaded
+     */
+    public static final int EXIT_OK = 0;
+    /**
+     * Exit status when some pages couldn't be crawled, some links couldn't be evaluated
+     * or some files failed to download
+     */
+    public static final int EXIT_FAILED = 1;
+    /**
+     * Exit status when the arguments are invalid
+     */
+    public static final int EXIT_USAGE = 2;
+
+    private static final String USAGE = String.join("\n",
+            "Usage: CommandLineClient [options] <url>...",
+            "",
+            "Options:",
+            "  -i, --input FILE      read more urls from FILE, one per line (- for stdin)",
+            "  -o, --output DIR      directory to save files in (default: current directory)",
+            "  -f, --filter NAME     accept a default collection: any, text, images or audio",
+            "  -m, --mime LIST       accept comma separated mimetypes, such as image/*,audio/ogg",
+            "  -e, --ext LIST        accept comma separated extensions, such as jpg,png",
+            "  -t, --threads N       links to evaluate and files to download at once (default: 8)",
+            "  -l, --links TYPE      links to follow: anchor, image or both (default: both)",
+            "  -d, --depth N         levels of subdirectories to crawl (default: 0)",
+            "      --per-host N      most requests to the same host at once (default: threads)",
+            "      --rate BYTES      limit the total download rate, in bytes per second",
+            "      --single-request  evaluate and download each file with one GET",
+            "      --direct-buffers  read into buffers outside of the heap",
+            "      --virtual         run on virtual threads",
+            "      --dedupe MODE     duplicate files: off, hardlink or skip (default: off)",
+            "      --dedupe-early    stop downloading a duplicate once its start and end match",
+            "      --metrics SECS    print metrics every SECS seconds and at the end, and expose",
+            "                        them over JMX",
+            "  -v, --verbose         log progress to the console",
+            "  -q, --quiet           only print the summary",
+            "  -h, --help            show this message",
+            "",
+            "Filters can be combined. Without one, every file is accepted.",
+            "Exits with 0 on success, 1 if anything failed and 2 for invalid arguments.");
+
+    private final List<URL> seeds;
+    private final MimeTypeCollection mimes;
+    private File outputDir;
+    private WebpageCrawler.LinkType linkType;
+    private ThreadMode threadMode;
+    private int threads, depth, perHost, metricsPeriod;
+    private boolean singleRequest, quiet;
+
+    private final AtomicInteger pages, links, failedPages;
+    private final AtomicInteger accepted, completed, duplicates;
+    private final AtomicLong bytes;
+
+    private CommandLineClient() {
+        this.seeds = new ArrayList<>();
+        this.mimes = new MimeTypeCollection();
+        this.outputDir = new File(".");
+        this.linkType = WebpageCrawler.LinkType.Both;
+        this.threadMode = ThreadMode.PLATFORM;
+        this.threads = 8;
+        this.pages = new AtomicInteger();
+        this.links = new AtomicInteger();
+        this.failedPages = new AtomicInteger();
+        this.accepted = new AtomicInteger();
+        this.completed = new AtomicInteger();
+        this.duplicates = new AtomicInteger();
+        this.bytes = new AtomicLong();
+    }
+
+    /**
+     * Main entry point for headless use
+     * @param args command line arguments, see {@code --help}
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        System.exit(run(args));
+    }
+
+    /**
+     * Parses the arguments and runs the whole job
+     * @param args command line arguments
+     * @return the exit status
+     */
+    public static int run(String[] args) {
+        Logs.LOG.setConsoleLevel(Level.WARNING);
+        CommandLineClient client = new CommandLineClient();
+        try {
+            if (!client.parse(args)) {
+                System.out.println(USAGE);
+                return EXIT_OK;
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("error: " + e.getMessage());
+            System.err.println("Try --help for usage");
+            return EXIT_USAGE;
+        }
+        try {
+            return client.download();
+        } catch (InterruptedException e) {
+            System.err.println("Interrupted");
+            return EXIT_FAILED;
+        }
+    }
+
+    /**
+     * Reads the options into the client
+     * @return false if only the help was asked for
+     * @throws IllegalArgumentException if the arguments are invalid
+     */
+    private boolean parse(String[] args) {
+        Level consoleLevel = null;
+        ContentIndex.Mode dedupe = ContentIndex.Mode.OFF;
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (!arg.startsWith("-")) {
+                seeds.add(toURL(arg));
+                continue;
+            }
+            switch (arg) {
+                case "-h": case "--help":
+                    return false;
+                case "-i": case "--input":
+                    readSeeds(value(args, ++i, arg));
+                    break;
+                case "-o": case "--output":
+                    outputDir = new File(value(args, ++i, arg));
+                    break;
+                case "-f": case "--filter":
+                    mimes.addAll(collection(value(args, ++i, arg)).getMimes());
+                    break;
+                case "-m": case "--mime":
+                    for (String mime : list(value(args, ++i, arg)))
+                        mimes.add(new MimeType(mime));
+                    break;
+                case "-e": case "--ext":
+                    for (String ext : list(value(args, ++i, arg)))
+                        mimes.add(forExtension(ext));
+                    break;
+                case "-t": case "--threads":
+                    threads = number(value(args, ++i, arg), arg, 1);
+                    break;
+                case "-l": case "--links":
+                    linkType = linkType(value(args, ++i, arg));
+                    break;
+                case "-d": case "--depth":
+                    depth = number(value(args, ++i, arg), arg, 0);
+                    break;
+                case "--per-host":
+                    perHost = number(value(args, ++i, arg), arg, 1);
+                    break;
+                case "--rate":
+                    BandwidthLimiter.GLOBAL.setRate(number(value(args, ++i, arg), arg, 0));
+                    break;
+                case "--single-request":
+                    singleRequest = true;
+                    break;
+                case "--direct-buffers":
+                    BufferPool.shared().setDirect(true);
+                    break;
+                case "--virtual":
+                    if (!ThreadMode.isVirtualSupported())
+                        throw new IllegalArgumentException("virtual threads aren't supported by this Java");
+                    threadMode = ThreadMode.VIRTUAL;
+                    break;
+                case "--metrics":
+                    metricsPeriod = number(value(args, ++i, arg), arg, 1);
+                    break;
+                case "--dedupe":
+                    dedupe = enumValue(ContentIndex.Mode.class, value(args, ++i, arg), arg);
+                    break;
+                case "--dedupe-early":
+                    ContentIndex.setEarlyAbort(true);
+                    break;
+                case "-v": case "--verbose":
+                    consoleLevel = Level.FINE;
+                    break;
+                case "-q": case "--quiet":
+                    quiet = true;
+                    consoleLevel = Level.SEVERE;
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + arg);
+            }
+        }
+
+        if (seeds.isEmpty())
+            throw new IllegalArgumentException("no urls given");
+        if (mimes.getMimes().isEmpty())
+            mimes.add(MimeType.WILDCARD);
+        if (ContentIndex.isEarlyAbort() && dedupe == ContentIndex.Mode.OFF)
+            throw new IllegalArgumentException("--dedupe-early needs --dedupe hardlink or skip");
+        ContentIndex.setMode(dedupe);
+        if (consoleLevel != null)
+            Logs.LOG.setConsoleLevel(consoleLevel);
+        return true;
+    }
+
+    /**
+     * Crawls every seed in turn while the pipeline evaluates and downloads what they link to
+     * @return the exit status
+     */
+    private int download() throws InterruptedException {
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            System.err.println("error: unable to create " + outputDir);
+            return EXIT_FAILED;
+        }
+
+        if (metricsPeriod > 0)
+            Metrics.getDefault().exposeJmx().startReporting(System.err, metricsPeriod * 1000L);
+
+        long start = System.nanoTime();
+        CountDownLatch finished = new CountDownLatch(1);
+        // Files are counted as they finish, so the pipeline doesn't need to keep them
+        DownloadPipeline pipeline = new DownloadPipeline(mimes, threads, threads, threads * 4, threadMode,
+                tasks -> finished.countDown());
+        pipeline.limitPerHost(perHost > 0 ? perHost : threads)
+                .setSingleRequest(singleRequest)
+                .setKeepResults(false)
+                .queued(task -> {
+                    accepted.incrementAndGet();
+                    task.done(this::report);
+                })
+                .open();
+
+        for (URL seed : seeds) {
+            CountDownLatch crawled = new CountDownLatch(1);
+            SiteCrawler crawler = new SiteCrawler(threads)
+                    .maxDepth(depth)
+                    .linkType(linkType)
+                    .found(url -> {
+                        links.incrementAndGet();
+                        pipeline.submit(url, outputDir);
+                    })
+                    .error(e -> System.err.println("Unable to crawl " + seed + ": " + e))
+                    .done(files -> crawled.countDown())
+                    .start(seed);
+            crawled.await();
+            pages.addAndGet(crawler.getPageCount());
+            failedPages.addAndGet(crawler.getFailedCount());
+        }
+        pipeline.close();
+        finished.await();
+
+        if (metricsPeriod > 0) {
+            Metrics.getDefault().stopReporting();
+            System.out.print(Metrics.getDefault().snapshot());
+        }
+
+        return summarise(pipeline.getFailedCount(), System.nanoTime() - start);
+    }
+
+    private void report(DownloadTask task) {
+        if (task.getState() == DownloadTask.State.COMPLETED) {
+            completed.incrementAndGet();
+            bytes.addAndGet(task.getBytes());
+            if (task.getDuplicateOf() != null)
+                duplicates.incrementAndGet();
+        }
+        if (quiet)
+            return;
+        String status = task.getState() == DownloadTask.State.COMPLETED
+                ? task.getDuplicateOf() != null ? "duplicate" : "done" : "FAILED";
+        synchronized (System.out) {
+            System.out.printf("%-9s %s%n", status, task.getFilepath());
+        }
+    }
+
+    private int summarise(int unevaluated, long nanos) {
+        // Includes downloads that threw before their callbacks ran
+        int failed = accepted.get() - completed.get();
+        long bytes = this.bytes.get();
+
+        double seconds = nanos / 1e9;
+        System.out.printf("Crawled %d pages from %d urls, found %d links%n", pages.get(), seeds.size(), links.get());
+        System.out.printf("Downloaded %d of %d accepted files (%d duplicates, %d failed), %s in %.1fs (%s/s)%n",
+                completed.get(), accepted.get(), duplicates.get(), failed, formatBytes(bytes), seconds,
+                formatBytes((long) (bytes / Math.max(seconds, 0.001))));
+        if (unevaluated > 0)
+            System.out.printf("%d links couldn't be evaluated%n", unevaluated);
+        if (failedPages.get() > 0)
+            System.out.printf("%d pages couldn't be crawled%n", failedPages.get());
+
+        return failed > 0 || unevaluated > 0 || failedPages.get() > 0 ? EXIT_FAILED : EXIT_OK;
+    }
+
+    private void readSeeds(String path) {
+        try (BufferedReader in = path.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(new File(path).toPath(), StandardCharsets.UTF_8)) {
+            for (String line; (line = in.readLine()) != null; ) {
+                line = line.trim();
+                if (!line.isEmpty() && !line.startsWith("#"))
+                    seeds.add(toURL(line));
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("unable to read " + path + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Finds a default collection by its short name or its full name
+     */
+    private static MimeTypeCollection collection(String name) {
+        String key = name.toLowerCase(Locale.ROOT);
+        switch (key) {
+            case "any": return MimeTypeCollection.WILDCARD;
+            case "text": return MimeTypeCollection.COMMON_TEXTS;
+            case "images": return MimeTypeCollection.COMMON_IMAGES;
+            case "audio": return MimeTypeCollection.COMMON_AUDIO;
+        }
+        for (MimeTypeCollection collection : MimeTypeCollection.DEF_COLLECTIONS)
+            if (collection.toString().equalsIgnoreCase(name))
+                return collection;
+        throw new IllegalArgumentException("unknown filter " + name);
+    }
+
+    /**
+     * Finds the type of an extension in the default collections
+     */
+    private static MimeType forExtension(String ext) {
+        String key = ext.startsWith(".") ? ext.substring(1) : ext;
+        for (MimeTypeCollection collection : MimeTypeCollection.DEF_COLLECTIONS)
+            for (MimeType mime : collection.getMimes())
+                if (mime.getExtensions().contains(key.toLowerCase(Locale.ROOT)))
+                    return mime;
+        throw new IllegalArgumentException("unknown extension " + ext + ", use --mime instead");
+    }
+
+    private static WebpageCrawler.LinkType linkType(String name) {
+        for (WebpageCrawler.LinkType type : WebpageCrawler.LinkType.values())
+            if (type.name().equalsIgnoreCase(name))
+                return type;
+        throw new IllegalArgumentException("unknown link type " + name);
+    }
+
+    private static <E extends Enum<E>> E enumValue(Class<E> type, String name, String option) {
+        try {
+            return Enum.valueOf(type, name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("invalid value for " + option + ": " + name);
+        }
+    }
+
+    private static URL toURL(String url) {
+        try {
+            return new URL(url);
+        } catch (MalformedURLException e) {
+            throw new IllegalArgumentException("invalid url " + url);
+        }
+    }
+
+    private static String value(String[] args, int i, String option) {
+        if (i >= args.length)
+            throw new IllegalArgumentException(option + " needs a value");
+        return args[i];
+    }
+
+    private static int number(String value, String option, int min) {
+        try {
+            int n = Integer.parseInt(value);
+            if (n >= min)
+                return n;
+        } catch (NumberFormatException ignored) { }
+        throw new IllegalArgumentException(option + " needs a number of at least " + min);
+    }
+
+    private static List<String> list(String value) {
+        List<String> items = new ArrayList<>();
+        for (String item : value.split(","))
+            if (!item.trim().isEmpty())
+                items.add(item.trim());
+        return items;
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 1024)
+            return bytes + " B";
+        int unit = (63 - Long.numberOfLeadingZeros(bytes)) / 10;
+        return String.format("%.1f %siB", bytes / (double) (1L << unit * 10), " KMGTPE".charAt(unit));
+    }
+}
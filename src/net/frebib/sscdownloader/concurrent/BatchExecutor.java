@@ -1,34 +1,111 @@
 package net.frebib.sscdownloader.concurrent;
 
-import net.frebib.sscdownloader.gui.DownloadClient;
+import net.frebib.sscdownloader.Logs;
+import net.frebib.sscdownloader.metrics.Counter;
+import net.frebib.sscdownloader.metrics.Gauge;
+import net.frebib.sscdownloader.metrics.Metrics;
 
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Wraps a {@link ThreadPoolExecutor} and batch executes all
- * added tasks, then disposes of the {@link ThreadPoolExecutor}
+ * added tasks, then disposes of the {@link ThreadPoolExecutor}.
+ * Completions are counted without locking, so tasks finishing at
+ * the same time don't wait on each other or on the callbacks
  * @param <T> {@link Callable} task to execute
  * @param <R> Return type of the {@link Callable} task
  */
-public class BatchExecutor<T extends Task<?, R>, R> implements Completion<R> {
-    private ThreadPoolExecutor pool;
-    private Collection<T> tasks;
-    private List<Completion<List<R>>> dones;
-    private List<R> results;
-    private int completedTasks;
+public class BatchExecutor<T extends Task<?, R>, R> {
+    private ExecutorService pool;
+    private Gauge queued, active;
+    private Counter completed, failed;
+    private HostScheduler scheduler;
+    private final int threadCount;
+    private final Queue<T> tasks;
+    private final List<Completion<List<R>>> dones;
+    private final Queue<R> results;
+    private final CompletableFuture<List<R>> future;
+    private final AtomicInteger pending;
+    private final AtomicBoolean released;
+    private volatile boolean open, keepResults = true;
 
     /**
      * Initialises a batch executor with an empty queue and set amount of threads
      * @param threadCount Amount of threads to use for execution of tasks
      */
     public BatchExecutor(int threadCount) {
-        this.tasks = new ArrayList<>();
-        this.dones = new ArrayList<>();
-        this.pool  = (ThreadPoolExecutor) Executors.newFixedThreadPool(threadCount);
-        this.results = new ArrayList<R>(this.tasks.size());
+        this(threadCount, ThreadMode.PLATFORM);
+    }
+
+    /**
+     * Initialises a batch executor with an empty queue that runs tasks on a kind of thread.
+     * With {@link ThreadMode#VIRTUAL} every task gets its own virtual thread, and
+     * {@code threadCount} is the amount of tasks that may run at once
+     * @param threadCount Amount of threads to use for execution of tasks
+     * @param mode the kind of threads to run tasks on
+     */
+    public BatchExecutor(int threadCount, ThreadMode mode) {
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.dones = new CopyOnWriteArrayList<>();
+        this.results = new ConcurrentLinkedQueue<>();
+        this.future = new CompletableFuture<>();
+        // One count for the batch itself, released by start() or close()
+        this.pending = new AtomicInteger(1);
+        this.released = new AtomicBoolean();
+        this.threadCount = threadCount;
+        this.pool  = mode.newExecutor(threadCount);
+        setMetricsPrefix("executor");
+        if (mode.isVirtual())   // Bound concurrency, the executor itself is unbounded
+            this.scheduler = new HostScheduler(pool, threadCount, threadCount);
+    }
+
+    /**
+     * Limits how many tasks can run at once for each host. Tasks that take a
+     * {@link URL} are queued by its host, any other task shares one queue
+     * @param limit maximum tasks in flight per host
+     * @return the BatchExecutor instance, for command chaining
+     */
+    public BatchExecutor<T, R> limitPerHost(int limit) {
+        if (scheduler == null)
+            scheduler = new HostScheduler(pool, threadCount, limit);
+        else
+            scheduler.setDefaultLimit(limit);
+        return this;
+    }
+
+    /**
+     * Sets the prefix of the names this executor's metrics are recorded under,
+     * so executors doing different work can be told apart. Should be called
+     * before any tasks are added
+     * @param prefix the prefix, such as {@code "executor.download"}
+     * @return the BatchExecutor instance, for command chaining
+     */
+    public BatchExecutor<T, R> setMetricsPrefix(String prefix) {
+        Metrics metrics = Metrics.getDefault();
+        queued = metrics.gauge(prefix + ".queued");
+        active = metrics.gauge(prefix + ".active");
+        completed = metrics.counter(prefix + ".completed");
+        failed = metrics.counter(prefix + ".failed");
+        return this;
+    }
+
+    /**
+     * Sets whether the results of tasks are kept for the completion callbacks. An executor
+     * that is open for a long time should stop keeping them, so memory use doesn't grow
+     * with the amount of tasks it has run. The callbacks are then given an empty list
+     * @param keepResults false to drop each result once its task has completed
+     * @return the BatchExecutor instance, for command chaining
+     */
+    public BatchExecutor<T, R> setKeepResults(boolean keepResults) {
+        this.keepResults = keepResults;
+        return this;
     }
 
     public BatchExecutor<T, R> done(Completion<List<R>> done) {
@@ -41,7 +118,7 @@ public class BatchExecutor<T extends Task<?, R>, R> implements Completion<R> {
      * @param task Task to add
      */
     public BatchExecutor add(T task) {
-        task.done(this);
+        track(task);
         tasks.add(task);
         return this;
     }
@@ -50,28 +127,116 @@ public class BatchExecutor<T extends Task<?, R>, R> implements Completion<R> {
      * @param tasks Tasks to add
      */
     public BatchExecutor addAll(Collection<? extends T> tasks) {
-        tasks.stream().forEach(t -> t.done(this));
-        this.tasks.addAll(tasks);
+        tasks.forEach(this::add);
         return this;
     }
 
-    @Override
-    public synchronized void onComplete(R r) throws Exception {
-        results.add(r);
-
-        if (results.size() >= tasks.size()) {
-            shutdown();
-            dones.stream().forEachOrdered(d -> {
-                if (d != null)
-                    try {
-                        d.onComplete(results);
-                    } catch (Exception e) {
-                        DownloadClient.LOG.exception(e);
-                    }
-            });
+    /**
+     * Starts accepting tasks with {@link #submit(Task)}, which run as soon as they are
+     * submitted. The completion callbacks aren't called until {@link #close()} is called
+     * and every submitted task has completed
+     * @return the BatchExecutor instance, for command chaining
+     */
+    public BatchExecutor<T, R> open() {
+        open = true;
+        return this;
+    }
+
+    /**
+     * Adds a task and runs it straight away. Used after {@link #open()}
+     * @param task Task to run
+     * @return the BatchExecutor instance, for command chaining
+     */
+    public BatchExecutor<T, R> submit(T task) {
+        track(task);
+        execute(task);
+        return this;
+    }
+
+    /**
+     * Adds a task and runs it on the calling thread, counting it
+     * towards the batch like any other task. Used after {@link #open()}
+     * @param task Task to run
+     * @return the result of the task
+     * @throws Exception any exception thrown by the task
+     */
+    public R run(T task) throws Exception {
+        track(task);
+        active.inc();
+        try {
+            return task.call();
+        } finally {
+            active.dec();
         }
     }
 
+    /**
+     * Stops accepting tasks after {@link #open()}. The completion callbacks
+     * are called once all of the submitted tasks have completed
+     */
+    public void close() {
+        open = false;
+        release();
+    }
+
+    /**
+     * Gets a future that is completed with the results of every task once the
+     * batch is complete, after the {@link Completion} callbacks have been called.
+     * Results are in the order the tasks completed, and tasks that threw or returned
+     * null are left out
+     * @see #setKeepResults(boolean)
+     */
+    public CompletableFuture<List<R>> getFuture() {
+        return future;
+    }
+
+    /**
+     * Counts a task towards the batch and collects its result when it completes.
+     * Only the result is kept, not the task or its future
+     */
+    private void track(T task) {
+        pending.incrementAndGet();
+        task.getFuture().whenComplete((r, e) -> {
+            if (e != null) {
+                failed.inc();
+                Logs.LOG.exception(e);
+            } else {
+                completed.inc();
+                if (keepResults && r != null)
+                    results.add(r);
+            }
+            arrive();
+        });
+    }
+
+    private void release() {
+        if (released.compareAndSet(false, true))
+            arrive();
+    }
+
+    private void arrive() {
+        if (pending.decrementAndGet() == 0)
+            finish();
+    }
+
+    /**
+     * Called exactly once, by whichever thread completes the last task
+     */
+    private void finish() {
+        shutdown();
+        List<R> list = new ArrayList<>(results);
+        results.clear();
+        dones.forEach(d -> {
+            if (d != null)
+                try {
+                    d.onComplete(list);
+                } catch (Exception e) {
+                    Logs.LOG.exception(e);
+                }
+        });
+        future.complete(list);
+    }
+
     /**
      * Executes all submitted tasks
      * @throws InterruptedException
@@ -79,9 +244,39 @@ public class BatchExecutor<T extends Task<?, R>, R> implements Completion<R> {
      * {@link Callable} task that was submitted for execution
      */
     public void start() throws InterruptedException {
-        this.tasks.stream()
-                .filter(t -> t != null)
-                .forEach(pool::submit);
+        for (T task; (task = tasks.poll()) != null; )
+            execute(task);
+        if (!open)
+            release();  // Completes straight away if there are no tasks
+    }
+
+    private void execute(T task) {
+        Runnable run = () -> {
+            queued.dec();
+            active.inc();
+            try {
+                task.call();
+            } catch (Exception e) {
+                // Reported through the task's future
+            } finally {
+                active.dec();
+            }
+        };
+        queued.inc();
+        try {
+            if (scheduler != null)
+                scheduler.submit(hostOf(task), run);
+            else
+                pool.execute(run);
+        } catch (RejectedExecutionException e) {
+            queued.dec();
+            throw e;
+        }
+    }
+
+    private static String hostOf(Task<?, ?> task) {
+        Object arg = task.getArgument();
+        return arg instanceof URL ? ((URL) arg).getHost() : "";
     }
 
     /**
@@ -92,11 +287,20 @@ public class BatchExecutor<T extends Task<?, R>, R> implements Completion<R> {
         pool.shutdown();
     }
 
+    /**
+     * Gets the {@link HostScheduler} that queues tasks by host
+     * @return the scheduler, or null if there is no per-host limit
+     */
+    public HostScheduler getScheduler() {
+        return scheduler;
+    }
+
     /**
      * Gets the underlying {@link Executor} that runs the tasks
-     * @return A {@link ThreadPoolExecutor} object
+     * @return A {@link ThreadPoolExecutor}, or a thread-per-task
+     *         executor when running on virtual threads
      */
-    public ThreadPoolExecutor getPool() {
+    public ExecutorService getPool() {
         return pool;
     }
 }
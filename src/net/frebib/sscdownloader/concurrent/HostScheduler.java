@@ -0,0 +1,186 @@
+package net.frebib.sscdownloader.concurrent;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Queues tasks per host and hands them to an {@link Executor} so that
+ * no host has more than a set amount of tasks in flight at once.
+ * Only as many tasks as there are worker slots are handed over at a time,
+ * so a free worker always takes the next task from a host with spare
+ * capacity rather than one stuck behind a slow host
+ */
+public class HostScheduler {
+    private final Executor executor;
+    private final int slots;
+    private final Map<String, HostQueue> hosts;
+    private final Map<String, Integer> limits;
+    private final ArrayDeque<HostQueue> ready;
+
+    private int defaultLimit;
+    private int running;
+
+    /**
+     * Creates a new HostScheduler
+     * @param executor executor to run the tasks on
+     * @param slots the amount of tasks that can run at once, usually the thread count
+     * @param defaultLimit maximum tasks in flight for each host
+     */
+    public HostScheduler(Executor executor, int slots, int defaultLimit) {
+        this.executor = executor;
+        this.slots = slots;
+        this.defaultLimit = Math.max(1, defaultLimit);
+        this.hosts = new HashMap<>();
+        this.limits = new HashMap<>();
+        this.ready = new ArrayDeque<>();
+    }
+
+    /**
+     * Adds a task to the queue for a host, running it as soon as there is capacity
+     * @param host the host the task connects to
+     * @param task the task to run
+     */
+    public void submit(String host, Runnable task) {
+        synchronized (this) {
+            HostQueue q = hosts.computeIfAbsent(host, HostQueue::new);
+            q.pending.add(task);
+            markReady(q);
+        }
+        dispatch();
+    }
+
+    /**
+     * Sets the maximum amount of tasks in flight for hosts without their own limit
+     * @param limit the limit, at least 1
+     */
+    public void setDefaultLimit(int limit) {
+        synchronized (this) {
+            defaultLimit = Math.max(1, limit);
+            hosts.values().forEach(this::markReady);
+        }
+        dispatch();
+    }
+
+    /**
+     * Sets the maximum amount of tasks in flight for a single host
+     * @param host the host
+     * @param limit the limit, at least 1
+     */
+    public void setLimit(String host, int limit) {
+        synchronized (this) {
+            limits.put(host, Math.max(1, limit));
+            HostQueue q = hosts.get(host);
+            if (q != null)
+                markReady(q);
+        }
+        dispatch();
+    }
+
+    /**
+     * Takes up to a number of extra connections to a host from its limit, for a task
+     * that is already running and wants to open more. Doesn't wait for them to free up
+     * @param host the host
+     * @param count the amount of connections wanted
+     * @return the amount taken, between 0 and count, to be given back with {@link #release(String, int)}
+     */
+    public synchronized int reserve(String host, int count) {
+        HostQueue q = hosts.computeIfAbsent(host, HostQueue::new);
+        int taken = Math.max(0, Math.min(count, limits.getOrDefault(host, defaultLimit) - q.inFlight));
+        q.inFlight += taken;
+        if (q.pending.isEmpty() && q.inFlight == 0)
+            hosts.remove(host);
+        return taken;
+    }
+
+    /**
+     * Gives back connections taken with {@link #reserve(String, int)}
+     * @param host the host
+     * @param count the amount taken
+     */
+    public void release(String host, int count) {
+        if (count < 1)
+            return;
+        synchronized (this) {
+            HostQueue q = hosts.get(host);
+            if (q == null)
+                return;
+            q.inFlight -= count;
+            if (q.pending.isEmpty() && q.inFlight == 0)
+                hosts.remove(host);
+            else
+                markReady(q);
+        }
+        dispatch();
+    }
+
+    /**
+     * Gets the amount of tasks waiting to run
+     */
+    public synchronized int getPending() {
+        return hosts.values().stream().mapToInt(q -> q.pending.size()).sum();
+    }
+
+    /**
+     * Hands tasks to the executor while there are free slots and
+     * hosts with capacity, taking from each host in turn
+     */
+    private void dispatch() {
+        List<Runnable> runs = new ArrayList<>();
+        synchronized (this) {
+            HostQueue q;
+            while (running < slots && (q = ready.poll()) != null) {
+                q.ready = false;
+                Runnable task = q.pending.poll();
+                q.inFlight++;
+                running++;
+                markReady(q);
+
+                final HostQueue host = q;
+                runs.add(() -> {
+                    try {
+                        task.run();
+                    } finally {
+                        release(host);
+                    }
+                });
+            }
+        }
+        runs.forEach(executor::execute);
+    }
+
+    private void release(HostQueue q) {
+        synchronized (this) {
+            q.inFlight--;
+            running--;
+            if (q.pending.isEmpty() && q.inFlight == 0)
+                hosts.remove(q.host);
+            else
+                markReady(q);
+        }
+        dispatch();
+    }
+
+    private void markReady(HostQueue q) {
+        if (!q.ready && !q.pending.isEmpty() && q.inFlight < limits.getOrDefault(q.host, defaultLimit)) {
+            q.ready = true;
+            ready.add(q);
+        }
+    }
+
+    private static class HostQueue {
+        private final String host;
+        private final ArrayDeque<Runnable> pending;
+        private int inFlight;
+        private boolean ready;
+
+        private HostQueue(String host) {
+            this.host = host;
+            this.pending = new ArrayDeque<>();
+        }
+    }
+
+}
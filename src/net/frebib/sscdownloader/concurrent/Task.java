@@ -1,16 +1,19 @@
 package net.frebib.sscdownloader.concurrent;
 
-import net.frebib.sscdownloader.gui.DownloadClient;
+import net.frebib.sscdownloader.Logs;
 
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
 
 public abstract class Task<T, R> extends Observable implements Callable<R>, Function<T, R> {
     protected final List<Completion<R>> done;
+    private final CompletableFuture<R> future;
     private final T t;
 
     public Task(T t) {
         this.done = new ArrayList<>();
+        this.future = new CompletableFuture<>();
         this.t = t;
     }
 
@@ -24,17 +27,40 @@ public abstract class Task<T, R> extends Observable implements Callable<R>, Func
         return this;
     }
 
+    /**
+     * Gets the argument that the Task is called with
+     */
+    public T getArgument() {
+        return t;
+    }
+
+    /**
+     * Gets a future that is completed with the result of the Task once it
+     * has been called and its {@link Completion} events have run, or
+     * completed exceptionally if the Task throws
+     */
+    public CompletableFuture<R> getFuture() {
+        return future;
+    }
+
     @Override
     public R call() throws Exception {
-        R r = this.call(t);
+        R r;
+        try {
+            r = this.call(t);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+            throw e;
+        }
         done.stream().forEach(d -> {
             try {
                 if (d != null)
                     d.onComplete(r);
             } catch (Exception e) {
-                DownloadClient.LOG.exception(e);
+                Logs.LOG.exception(e);
             }
         });
+        future.complete(r);
         return r;
     }
 }
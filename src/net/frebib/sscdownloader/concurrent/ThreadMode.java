@@ -0,0 +1,88 @@
+package net.frebib.sscdownloader.concurrent;
+
+import net.frebib.sscdownloader.Logs;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The kind of threads that the worker framework runs tasks on.
+ * Virtual threads need Java 21 or newer and are looked up reflectively,
+ * so on older runtimes {@link #VIRTUAL} falls back to platform threads
+ */
+public enum ThreadMode {
+    /**
+     * A fixed pool of operating system threads, one per concurrent task
+     */
+    PLATFORM,
+    /**
+     * A new virtual thread per task, multiplexed onto a few carrier threads.
+     * Suited to thousands of concurrent blocking requests
+     */
+    VIRTUAL;
+
+    private static final ThreadFactory VIRTUAL_FACTORY = virtualFactory();
+    private static final Method PER_TASK_EXECUTOR = perTaskExecutor();
+
+    /**
+     * Gets whether the runtime supports virtual threads
+     */
+    public static boolean isVirtualSupported() {
+        return VIRTUAL.isVirtual();
+    }
+
+    /**
+     * Creates an executor to run tasks on
+     * @param threadCount amount of platform threads in the pool. Virtual executors
+     *                    are unbounded, so callers should limit concurrency themselves
+     * @return a new executor
+     */
+    public ExecutorService newExecutor(int threadCount) {
+        if (isVirtual())
+            try {
+                return (ExecutorService) PER_TASK_EXECUTOR.invoke(null, VIRTUAL_FACTORY);
+            } catch (ReflectiveOperationException e) {
+                Logs.LOG.exception(e);
+            }
+        return Executors.newFixedThreadPool(threadCount);
+    }
+
+    /**
+     * Creates a thread that hasn't been started
+     * @param task the task for the thread to run
+     * @return a new thread
+     */
+    public Thread newThread(Runnable task) {
+        if (isVirtual())
+            return VIRTUAL_FACTORY.newThread(task);
+        return new Thread(task);
+    }
+
+    /**
+     * Gets whether tasks run on virtual threads with this mode on the current runtime
+     */
+    public boolean isVirtual() {
+        return this == VIRTUAL && VIRTUAL_FACTORY != null && PER_TASK_EXECUTOR != null;
+    }
+
+    private static ThreadFactory virtualFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            Logs.LOG.fine("Virtual threads are not supported, using platform threads");
+            return null;
+        }
+    }
+
+    private static Method perTaskExecutor() {
+        try {
+            return Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
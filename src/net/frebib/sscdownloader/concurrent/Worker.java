@@ -1,17 +1,39 @@
 package net.frebib.sscdownloader.concurrent;
 
+import net.frebib.sscdownloader.Logs;
+
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A flexible asynchronous task executor which supports
- * supports argument passing and callbacks upon completion
+ * supports argument passing and callbacks upon completion.
+ * Workers run on a shared executor, so starting one doesn't create a thread
  * @param <T> type of input data
  * @param <R> type of return data
  */
 public class Worker<T, R> {
-    private boolean cancelled = false, complete;
-    private Thread thread;
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+    private static final ExecutorService PLATFORM_POOL = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "worker-" + THREAD_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ExecutorService VIRTUAL_POOL = ThreadMode.isVirtualSupported()
+            ? ThreadMode.VIRTUAL.newExecutor(1) : null;
+    private static final ThreadLocal<Worker<?, ?>> CURRENT = new ThreadLocal<>();
+
+    private volatile boolean cancelled = false, complete;
+    private final ExecutorService executor;
+    private final List<Closeable> resources;
+    private volatile Future<?> future;
+    private String name;
     private Function<T, R> task;
     private List<Completion<R>> done;
     private Progress prog;
@@ -29,36 +51,42 @@ public class Worker<T, R> {
     }
 
     /**
-     * Creates a new named worker
+     * Creates a new named worker. The thread running
+     * the task takes the name while the task runs
      * @param name
      */
     public Worker(String name) {
         this();
-        thread.setName(name);
+        this.name = name;
     }
 
     /**
      * Creates a default worker with no name
      */
     public Worker() {
+        this(ThreadMode.PLATFORM);
+    }
+
+    /**
+     * Creates a worker that runs on a kind of thread
+     * @param mode the kind of thread to run the task on
+     */
+    public Worker(ThreadMode mode) {
         this.done = new ArrayList<>();
+        this.resources = new ArrayList<>();
+        this.executor = mode.isVirtual() ? VIRTUAL_POOL : PLATFORM_POOL;
+    }
 
-        thread = new Thread(() -> {
-            try {
-                R r = task.call(t);
-                if (!cancelled)
-                    for (Completion<R> handler : done)
-                        handler.onComplete(r);
-                complete = true;
-            } catch (Exception ex) {
-                if (error != null)
-                    error.onError(ex);
-                else {
-                    ex.printStackTrace();
-                    System.exit(1);
-                }
-            }
-        });
+    /**
+     * Registers a resource, such as an open connection, to be closed if the
+     * {@link Worker} running on the current thread is cancelled. This unblocks
+     * I/O that doesn't respond to interrupts. Does nothing outside of a Worker
+     * @param resource the resource to close on cancellation
+     */
+    public static void closeOnCancel(Closeable resource) {
+        Worker<?, ?> worker = CURRENT.get();
+        if (worker != null)
+            worker.register(resource);
     }
 
     /**
@@ -113,10 +141,58 @@ public class Worker<T, R> {
      */
     public Worker<T, R> start(T t) {
         this.t = t;
-        thread.start();
+        future = executor.submit(this::run);
         return this;
     }
 
+    private void run() {
+        Thread thread = Thread.currentThread();
+        String threadName = thread.getName();
+        if (name != null)
+            thread.setName(name);
+        CURRENT.set(this);
+        try {
+            R r = task.call(t);
+            if (!cancelled)
+                for (Completion<R> handler : done)
+                    handler.onComplete(r);
+            complete = true;
+        } catch (Exception ex) {
+            if (cancelled)
+                Logs.LOG.fine("Worker cancelled: " + ex);
+            else if (error != null)
+                error.onError(ex);
+            else
+                Logs.LOG.exception(ex);
+        } catch (Error err) {
+            Logs.LOG.exception(err);
+        } finally {
+            CURRENT.remove();
+            synchronized (resources) {
+                resources.clear();
+            }
+            thread.setName(threadName);
+        }
+    }
+
+    private void register(Closeable resource) {
+        synchronized (resources) {
+            if (!cancelled) {
+                resources.add(resource);
+                return;
+            }
+        }
+        close(resource);
+    }
+
+    private static void close(Closeable resource) {
+        try {
+            resource.close();
+        } catch (IOException e) {
+            Logs.LOG.fine("Unable to close resource on cancel: " + e.getMessage());
+        }
+    }
+
     /**
      * Gets whether the worker has completed it's operation
      * @return true if the worker has completed
@@ -126,10 +202,27 @@ public class Worker<T, R> {
     }
 
     /**
-     * Attempts to cancel the worker operation. This will prevent
-     * the callback from being called if/when the task completes
+     * Cancels the worker operation. The task is interrupted and any resources
+     * registered with {@link #closeOnCancel(Closeable)} are closed, and
+     * the callbacks won't be called if the task still completes
      */
     public void cancel() {
-        cancelled = true;
+        List<Closeable> open;
+        synchronized (resources) {
+            cancelled = true;
+            open = new ArrayList<>(resources);
+            resources.clear();
+        }
+        Future<?> f = future;
+        if (f != null)
+            f.cancel(true);
+        open.forEach(Worker::close);
+    }
+
+    /**
+     * Gets whether the worker has been cancelled
+     */
+    public boolean isCancelled() {
+        return cancelled;
     }
 }
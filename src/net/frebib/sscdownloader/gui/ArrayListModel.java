@@ -5,21 +5,28 @@ import net.frebib.sscdownloader.MimeType;
 import javax.swing.*;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.List;
 
 /**
  * Represents a {@link ListModel} that uses an Array for storing data.
- * Updates the related JList when any element is added, removed or updated in the list
+ * Updates the related JList when any element is added, removed or updated in the list.
+ * Elements are also kept in an identity map of their index, so membership and index
+ * lookups take constant time. Elements are compared by identity, not {@code equals}
  * @param <T> the type of data stored in the {@link ListModel}
  */
 public class ArrayListModel<T> extends AbstractListModel<T> {
     private ArrayList<T> list;
+    private IdentityHashMap<T, Integer> indices;
 
     public ArrayListModel() {
         this.list = new ArrayList<T>();
+        this.indices = new IdentityHashMap<>();
     }
     public ArrayListModel(List<T> mimes) {
         this.list = new ArrayList<T>(mimes);
+        this.indices = new IdentityHashMap<>();
+        reindex(0);
     }
 
     /**
@@ -29,7 +36,8 @@ public class ArrayListModel<T> extends AbstractListModel<T> {
      */
     public boolean add(T e) {
         boolean b = list.add(e);
-        int index = list.indexOf(e);
+        int index = list.size() - 1;
+        indices.putIfAbsent(e, index);
         fireIntervalAdded(e, index, index);
         return b;
     }
@@ -41,6 +49,7 @@ public class ArrayListModel<T> extends AbstractListModel<T> {
      */
     public void add(int index, T e) {
         list.add(index, e);
+        reindex(index);
         fireIntervalAdded(e, index, list.size());
     }
 
@@ -49,7 +58,9 @@ public class ArrayListModel<T> extends AbstractListModel<T> {
      * @param c collection to add
      */
     public void addAll(Collection<? extends T> c) {
+        int from = list.size();
         list.addAll(c);
+        reindex(from);
         fireIntervalAdded(c, 0, list.size());
     }
 
@@ -58,8 +69,11 @@ public class ArrayListModel<T> extends AbstractListModel<T> {
      * @param e element to remove
      */
     public void remove(T e) {
-        int index = list.indexOf(e);
-        list.remove(e);
+        int index = indexOf(e);
+        if (index < 0) return;
+        list.remove(index);
+        indices.remove(e);  // Put back by reindex if it is in the list again further on
+        reindex(index);
         fireIntervalRemoved(e, index, index);
     }
 
@@ -68,8 +82,10 @@ public class ArrayListModel<T> extends AbstractListModel<T> {
      * @param index index to remove element from
      */
     public void remove(int index) {
-        T e = list.get(index);
-        list.remove(index);
+        T e = list.remove(index);
+        if (indexOf(e) == index)
+            indices.remove(e);
+        reindex(index);
         fireIntervalRemoved(e, index, index);
     }
 
@@ -79,7 +95,7 @@ public class ArrayListModel<T> extends AbstractListModel<T> {
      * @return {@code true} if {@link ListModel} contains element e
      */
     public boolean contains(T e) {
-        return list.contains(e);
+        return indices.containsKey(e);
     }
 
     /**
@@ -88,15 +104,33 @@ public class ArrayListModel<T> extends AbstractListModel<T> {
      * @return index of element or -1 if it is not in the list
      */
     public int indexOf(Object o) {
-        return list.indexOf(o);
+        Integer index = indices.get(o);
+        return index != null ? index : -1;
     }
 
     /**
      * Removes all elements from the {@link ListModel}
      */
     public void clear() {
+        int size = list.size();
         list.clear();
-        fireIntervalRemoved(this, 0, list.size());
+        indices.clear();
+        fireIntervalRemoved(this, 0, Math.max(0, size - 1));
+    }
+
+    /**
+     * Updates the index map after elements from {@code from} onwards have moved.
+     * Each element maps to its first position in the list. Only the moved positions
+     * are visited, from the end so an element's first position is the one that stays
+     * @param from the first position that has changed
+     */
+    private void reindex(int from) {
+        for (int i = list.size() - 1; i >= from; i--) {
+            T e = list.get(i);
+            Integer index = indices.get(e);
+            if (index == null || index >= from)
+                indices.put(e, i);
+        }
     }
 
     /**
@@ -118,8 +152,8 @@ public class ArrayListModel<T> extends AbstractListModel<T> {
     }
 
     /**
-     * Gets the underlying {@link ArrayList} that
-     * stores the elements in the list
+     * Gets the underlying {@link ArrayList} that stores the elements
+     * in the list. It must not be modified directly
      * @return the underlying list
      */
     public ArrayList<T> getList() {
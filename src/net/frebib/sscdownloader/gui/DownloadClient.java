@@ -1,11 +1,19 @@
 package net.frebib.sscdownloader.gui;
 
+import net.frebib.sscdownloader.BandwidthLimiter;
+import net.frebib.sscdownloader.ContentIndex;
+import net.frebib.sscdownloader.DownloadPipeline;
 import net.frebib.sscdownloader.DownloadTask;
 import net.frebib.sscdownloader.FileEvaluator;
+import net.frebib.sscdownloader.Logs;
 import net.frebib.sscdownloader.MimeTypeCollection;
+import net.frebib.sscdownloader.PageCache;
+import net.frebib.sscdownloader.SiteCrawler;
 import net.frebib.sscdownloader.WebpageCrawler;
 import net.frebib.sscdownloader.concurrent.BatchExecutor;
+import net.frebib.sscdownloader.concurrent.ThreadMode;
 import net.frebib.sscdownloader.concurrent.Worker;
+import net.frebib.sscdownloader.metrics.Metrics;
 import net.frebib.util.Log;
 
 import javax.swing.*;
@@ -20,10 +28,8 @@ import java.awt.event.MouseListener;
 import java.io.File;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.List;
-import java.util.logging.Level;
 import java.util.stream.Collectors;
 
 /**
@@ -31,9 +37,7 @@ import java.util.stream.Collectors;
  * and downloading all the files/images according to user preferences
  */
 public class DownloadClient extends JFrame implements Observer, MouseListener {
-    public static final Log LOG = new Log(Level.FINEST)
-            .setLogOutput(new SimpleDateFormat("'log/downloader'yyyy-MM-dd hh-mm-ss'.log'")
-                    .format(new Date()));
+    public static final Log LOG = Logs.LOG;
 
     private JPanel pnlMain, pnlTop, pnlButton;
     private JScrollPane scroller;
@@ -59,6 +63,14 @@ public class DownloadClient extends JFrame implements Observer, MouseListener {
     private FilterFrame filterFrame;
     private FileEvaluator eval;
     private BatchExecutor<DownloadTask, DownloadTask> downloader;
+    private BandwidthLimiter jobLimiter = new BandwidthLimiter(0);
+    private int hostLimit;
+    private boolean pipelined, singleRequest;
+    private ThreadMode threadMode = ThreadMode.PLATFORM;
+    private DownloadPipeline pipeline;
+    private Worker<URL, Integer> crawler;
+    private SiteCrawler siteCrawler;
+    private int crawlDepth;
 
     /**
      * Initialise the frame and create all components on the form
@@ -90,7 +102,7 @@ public class DownloadClient extends JFrame implements Observer, MouseListener {
         txtSaveDir = new JTextField();
 
         int coreCount = Runtime.getRuntime().availableProcessors();
-        SpinnerModel sm = new SpinnerNumberModel(coreCount * 2, 1, coreCount * 16, 1);
+        SpinnerModel sm = new SpinnerNumberModel(coreCount * 2, 1, maxThreads(), 1);
         numThreads = new JSpinner(sm);
         chkAnchor = new JCheckBox("Anchor tags <a/>", true);
         chkImage = new JCheckBox("Image tags <img/>", true);
@@ -250,6 +262,8 @@ public class DownloadClient extends JFrame implements Observer, MouseListener {
     public void onGoClick(ActionEvent e) {
         if (status == DownloadClient.Status.DOWNLOADED) {
             downloader = null;
+            pipeline = null;
+            jobLimiter = new BandwidthLimiter(0);
             eval = null;
             listModel.clear();
             reset();
@@ -305,31 +319,85 @@ public class DownloadClient extends JFrame implements Observer, MouseListener {
     public void fetch(URL link, File outputDir) {
         setURL(link.toString());
 
-        evaluate();
+        if (pipelined)
+            pipeline();
+        else
+            evaluate();
 
         // Fetch links and parse them
         btnGo.setEnabled(false);
         updateStatus(DownloadClient.Status.GRABBING);
-        new Worker<URL, List<URL>>()
-                .todo(url -> WebpageCrawler.parse(url, WebpageCrawler.LinkType.Both, 30000))
-                .done(links -> {
-                    setDownloadCount(links.size());
-                    links.stream().forEach(url ->
-                            eval.add(url, outputDir, dl -> {
-                                SwingUtilities.invokeLater(() -> listModel.add(dl));
-                                decDownloadCount();
-                            }));
-                    eval.start();
-                }).error(ex -> {
-            String strace = ex.getMessage() +
-                    Arrays.stream(ex.getStackTrace())
-                            .limit(5)
-                            .map(StackTraceElement::toString)
-                            .collect(Collectors.joining("\n"));
-
-            JOptionPane.showMessageDialog(this, "Failed to Connect\n"+ ex.getMessage() + strace,
-                    "Failed to Connect", JOptionPane.INFORMATION_MESSAGE);
-        }).start(link);
+        if (crawler != null)
+            crawler.cancel();
+        if (siteCrawler != null)
+            siteCrawler.cancel();
+        setDownloadCount(0);
+        if (pipeline != null) {
+            updateStatus(DownloadClient.Status.DOWNLOADING);
+            pipeline.open();
+        } else
+            eval.open();
+
+        if (crawlDepth > 0) {
+            siteCrawler = new SiteCrawler(getThreadCount())
+                    .maxDepth(crawlDepth)
+                    .found(url -> found(url, outputDir))
+                    .done(files -> foundAll())
+                    .error(this::showConnectError)
+                    .start(link);
+            return;
+        }
+        // Links are evaluated as they are read from the page
+        crawler = new Worker<URL, Integer>(threadMode)
+                .todo(url -> WebpageCrawler.parse(url, WebpageCrawler.LinkType.Both, 30000,
+                        found -> found(found, outputDir)))
+                .done(links -> foundAll())
+                .error(ex -> {
+                    foundAll();
+                    showConnectError(ex);
+                }).start(link);
+    }
+
+    /**
+     * Evaluates a link found on the webpage, straight away
+     * @param url the link
+     * @param outputDir location to set file downloads to
+     */
+    private void found(URL url, File outputDir) {
+        if (pipeline != null) {
+            pipeline.submit(url, outputDir);
+            return;
+        }
+        incDownloadCount();
+        eval.submit(url, outputDir, dl -> {
+            SwingUtilities.invokeLater(() -> listModel.add(dl));
+            decDownloadCount();
+        });
+    }
+
+    /**
+     * Marks the end of the links, so evaluation completes once the last one is done
+     */
+    private void foundAll() {
+        if (pipeline != null)
+            pipeline.close();
+        else
+            eval.close();
+    }
+
+    /**
+     * Shows the reason the webpage couldn't be fetched
+     * @param ex the exception thrown fetching the webpage
+     */
+    private void showConnectError(Exception ex) {
+        String strace = ex.getMessage() +
+                Arrays.stream(ex.getStackTrace())
+                        .limit(5)
+                        .map(StackTraceElement::toString)
+                        .collect(Collectors.joining("\n"));
+
+        JOptionPane.showMessageDialog(this, "Failed to Connect\n"+ ex.getMessage() + strace,
+                "Failed to Connect", JOptionPane.INFORMATION_MESSAGE);
     }
 
     /**
@@ -340,7 +408,8 @@ public class DownloadClient extends JFrame implements Observer, MouseListener {
         // Create a FileEvaluator object and
         // define what to do when it completes
         final int threads = getThreadCount();
-        eval = new FileEvaluator(mimeTypes, threads, tasks -> {
+        final int perHost = hostLimit > 0 ? hostLimit : threads;
+        eval = new FileEvaluator(mimeTypes, threads, threadMode, tasks -> {
             btnGo.setEnabled(true);
             updateStatus(DownloadClient.Status.GRABBED);
             setDownloadCount(0);
@@ -349,11 +418,31 @@ public class DownloadClient extends JFrame implements Observer, MouseListener {
                     .filter(x -> x != null)
                     .collect(Collectors.toList());
             tasks.stream().forEach(t ->
-                    t.done(r -> incDownloadCount()));
+                    t.setLimiter(jobLimiter).done(r -> incDownloadCount()));
 
-            downloader = new BatchExecutor<>(getThreadCount());
+            downloader = new BatchExecutor<>(getThreadCount(), threadMode);
+            downloader.setMetricsPrefix("executor.download").limitPerHost(perHost);
+            tasks.forEach(t -> t.setHostScheduler(downloader.getScheduler()));
             downloader.done(res -> updateStatus(DownloadClient.Status.DOWNLOADED));
             downloader.addAll(tasks);
+        }).limitPerHost(perHost);
+    }
+
+    /**
+     * Creates a {@link DownloadPipeline} that downloads each file as soon
+     * as it has been evaluated, instead of waiting for the whole page
+     */
+    public void pipeline() {
+        final int threads = getThreadCount();
+        pipeline = new DownloadPipeline(mimeTypes, threads, threads, threads * 4, threadMode, res -> {
+            btnGo.setEnabled(true);
+            updateStatus(DownloadClient.Status.DOWNLOADED);
+        });
+        pipeline.limitPerHost(hostLimit > 0 ? hostLimit : threads);
+        pipeline.setSingleRequest(singleRequest).setKeepResults(false);
+        pipeline.queued(dl -> {
+            dl.setLimiter(jobLimiter).done(r -> incDownloadCount());
+            SwingUtilities.invokeLater(() -> listModel.add(dl));
         });
     }
 
@@ -374,6 +463,100 @@ public class DownloadClient extends JFrame implements Observer, MouseListener {
             mi.setEnabled(false);
         menu.add(mi);
 
+        mi = new JMenuItem("Limit Bandwidth...");
+        mi.addActionListener(e -> askRate("Limit all downloads", BandwidthLimiter.GLOBAL));
+        menu.add(mi);
+
+        mi = new JMenuItem("Limit This Job...");
+        mi.addActionListener(e -> askRate("Limit the current downloads", jobLimiter));
+        menu.add(mi);
+
+        mi = new JMenuItem("Connections Per Host...");
+        mi.addActionListener(e -> {
+            String input = JOptionPane.showInputDialog(this,
+                    "Maximum requests to one host at a time (0 for no limit)", hostLimit);
+            try {
+                if (input != null)
+                    hostLimit = Math.max(0, Integer.parseInt(input.trim()));
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(this, "\"" + input + "\" is not a number",
+                        "Connections Per Host", JOptionPane.WARNING_MESSAGE);
+            }
+        });
+        menu.add(mi);
+
+        mi = new JMenuItem("Crawl Depth...");
+        mi.addActionListener(e -> {
+            String input = JOptionPane.showInputDialog(this,
+                    "Levels of subdirectories to follow (0 for this page only)", crawlDepth);
+            try {
+                if (input != null)
+                    crawlDepth = Math.max(0, Integer.parseInt(input.trim()));
+            } catch (NumberFormatException ex) {
+                JOptionPane.showMessageDialog(this, "\"" + input + "\" is not a number",
+                        "Crawl Depth", JOptionPane.WARNING_MESSAGE);
+            }
+        });
+        if (status != Status.UNINITIALIZED)
+            mi.setEnabled(false);
+        menu.add(mi);
+
+        JCheckBoxMenuItem chk = new JCheckBoxMenuItem("Download While Evaluating", pipelined);
+        chk.addActionListener(e -> pipelined = chk.isSelected());
+        if (status != Status.UNINITIALIZED)
+            chk.setEnabled(false);
+        menu.add(chk);
+
+        JCheckBoxMenuItem chkVirtual = new JCheckBoxMenuItem("Virtual Threads", threadMode == ThreadMode.VIRTUAL);
+        chkVirtual.addActionListener(e -> {
+            threadMode = chkVirtual.isSelected() ? ThreadMode.VIRTUAL : ThreadMode.PLATFORM;
+            ((SpinnerNumberModel) numThreads.getModel()).setMaximum(maxThreads());
+            if (getThreadCount() > maxThreads())
+                numThreads.setValue(maxThreads());
+        });
+        if (status != Status.UNINITIALIZED || !ThreadMode.isVirtualSupported())
+            chkVirtual.setEnabled(false);
+        menu.add(chkVirtual);
+
+        JCheckBoxMenuItem chkSingle = new JCheckBoxMenuItem("One Request Per File", singleRequest);
+        chkSingle.addActionListener(e -> singleRequest = chkSingle.isSelected());
+        if (status != Status.UNINITIALIZED || !pipelined)
+            chkSingle.setEnabled(false);
+        menu.add(chkSingle);
+
+        JMenu dupes = new JMenu("Duplicate Files");
+        ButtonGroup dupeGroup = new ButtonGroup();
+        String[] dupeNames = { "Keep Copies", "Link to the First", "Skip" };
+        for (ContentIndex.Mode mode : ContentIndex.Mode.values()) {
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(dupeNames[mode.ordinal()],
+                    ContentIndex.getMode() == mode);
+            item.addActionListener(e -> ContentIndex.setMode(mode));
+            dupeGroup.add(item);
+            dupes.add(item);
+        }
+        dupes.addSeparator();
+        JCheckBoxMenuItem chkEarly = new JCheckBoxMenuItem("Stop Early When Start and End Match",
+                ContentIndex.isEarlyAbort());
+        chkEarly.addActionListener(e -> ContentIndex.setEarlyAbort(chkEarly.isSelected()));
+        dupes.add(chkEarly);
+        if (status != Status.UNINITIALIZED)
+            dupes.setEnabled(false);
+        menu.add(dupes);
+
+        JCheckBoxMenuItem chkCache = new JCheckBoxMenuItem("Remember Pages", PageCache.getDefault() != null);
+        chkCache.addActionListener(e -> PageCache.setDefault(chkCache.isSelected()
+                ? new PageCache(new File("cache", "pages")) : null));
+        menu.add(chkCache);
+
+        mi = new JMenuItem("Metrics...");
+        mi.addActionListener(e -> {
+            JTextArea text = new JTextArea(Metrics.getDefault().snapshot(), 20, 100);
+            text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+            text.setEditable(false);
+            JOptionPane.showMessageDialog(this, new JScrollPane(text), "Metrics", JOptionPane.PLAIN_MESSAGE);
+        });
+        menu.add(mi);
+
         mi = new JMenuItem("Fetch Again");
         mi.addActionListener(e -> JOptionPane.showMessageDialog(this, "This option does nothing."));
         //if (!status.atLeast(Status.GRABBED))
@@ -389,6 +572,24 @@ public class DownloadClient extends JFrame implements Observer, MouseListener {
         menu.show(btnMenu, ev.getX(), ev.getY());
     }
 
+    /**
+     * Asks the user for a new rate limit in KiB/s and applies it
+     * @param title title of the dialog
+     * @param limiter the limiter to change
+     */
+    private void askRate(String title, BandwidthLimiter limiter) {
+        String input = JOptionPane.showInputDialog(this, "Maximum KiB/s (0 for unlimited)",
+                limiter.getRate() / 1024);
+        if (input == null)
+            return;
+        try {
+            limiter.setRate(Long.parseLong(input.trim()) * 1024);
+        } catch (NumberFormatException ex) {
+            JOptionPane.showMessageDialog(this, "\"" + input + "\" is not a number",
+                    title, JOptionPane.WARNING_MESSAGE);
+        }
+    }
+
     public void mousePressed(MouseEvent e) { }
     public void mouseReleased(MouseEvent e) { }
     public void mouseEntered(MouseEvent e) { }
@@ -441,6 +642,15 @@ public class DownloadClient extends JFrame implements Observer, MouseListener {
         return txtSaveDir.getText();
     }
 
+    /**
+     * Gets the largest thread count that can be chosen. Virtual threads
+     * are cheap enough to allow thousands of requests in flight
+     */
+    private int maxThreads() {
+        int coreCount = Runtime.getRuntime().availableProcessors();
+        return threadMode == ThreadMode.VIRTUAL ? 4096 : coreCount * 16;
+    }
+
     /*
      * Gets the amount of threads specified on the form
      * @return the thread count
@@ -524,6 +734,10 @@ public class DownloadClient extends JFrame implements Observer, MouseListener {
      * Resets the form back to the initial state for re-use
      */
     public void reset() {
+        if (crawler != null)
+            crawler.cancel();
+        if (siteCrawler != null)
+            siteCrawler.cancel();
         count = 0;
         updateStatus(Status.UNINITIALIZED);
         linkType = WebpageCrawler.LinkType.Both;
@@ -543,6 +757,7 @@ public class DownloadClient extends JFrame implements Observer, MouseListener {
     public static void main(String[] args) {
         LOG.info("URL: https://lsd-25.ru/uploads/Various%20Artists%20-%20Drum%20%26%20Bass%20Arena%202014%20%20%282014%29/");
         LOG.info("Downloader initialised");
+        Metrics.getDefault().exposeJmx();
 
         DownloadClient client = new DownloadClient();
         client.setVisible(true);
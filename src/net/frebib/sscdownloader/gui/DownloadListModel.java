@@ -40,15 +40,20 @@ public class DownloadListModel extends ArrayListModel<DownloadTask> implements O
     }
     @Override
     public void update(Observable o, Object arg) {
-        int index = indexOf(o);
-        if (index < 0) return;
+        // Taken from the event, the task has usually moved on by the time the GUI runs
+        boolean started = arg == DownloadTask.State.INITIALISED;
 
-        lastIndex = Math.max(index, lastIndex);
+        // Repaint on the event thread so downloads don't wait for the GUI
+        SwingUtilities.invokeLater(() -> {
+            int index = indexOf(o);
+            if (index < 0) return;
 
-        DownloadTask task = (DownloadTask)o;
-        if (task.getState() == DownloadTask.State.INITIALISED)
-            SwingUtilities.invokeLater(() -> list.ensureIndexIsVisible(lastIndex));
+            lastIndex = Math.max(index, lastIndex);
 
-        fireContentsChanged(o, index, index);
+            if (started)
+                list.ensureIndexIsVisible(lastIndex);
+
+            fireContentsChanged(o, index, index);
+        });
     }
 }
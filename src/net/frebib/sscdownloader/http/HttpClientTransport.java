@@ -0,0 +1,145 @@
+package net.frebib.sscdownloader.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * A {@link Transport} backed by a single shared {@link HttpClient}. Connections
+ * are kept alive and pooled per host, and servers that support HTTP/2 have
+ * all requests multiplexed over one connection instead of a handshake each.
+ * Segments of a download are sent with an HTTP/1.1 client instead, see {@link #forSegments()}
+ */
+public class HttpClientTransport implements Transport {
+    private final HttpClient client;
+    private volatile HttpClientTransport segments;
+
+    /**
+     * Creates a transport that prefers HTTP/2 and follows redirects
+     */
+    public HttpClientTransport() {
+        this(HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofSeconds(30))
+                .build());
+    }
+
+    /**
+     * Creates a transport that uses a preconfigured {@link HttpClient}
+     * @param client the client to send requests with
+     */
+    public HttpClientTransport(HttpClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Gets a transport with the same settings that only speaks HTTP/1.1, so concurrent
+     * requests each get their own connection. Over HTTP/2 the byte ranges of a segmented
+     * download would share one connection, and any per-connection throttling with it
+     */
+    @Override
+    public Transport forSegments() {
+        if (client.version() == HttpClient.Version.HTTP_1_1)
+            return this;
+        HttpClientTransport t = segments;
+        if (t == null) {
+            synchronized (this) {
+                if ((t = segments) == null) {
+                    HttpClient.Builder builder = HttpClient.newBuilder()
+                            .version(HttpClient.Version.HTTP_1_1)
+                            .followRedirects(client.followRedirects());
+                    client.connectTimeout().ifPresent(builder::connectTimeout);
+                    client.proxy().ifPresent(builder::proxy);
+                    client.authenticator().ifPresent(builder::authenticator);
+                    client.cookieHandler().ifPresent(builder::cookieHandler);
+                    client.executor().ifPresent(builder::executor);
+                    segments = t = new HttpClientTransport(builder
+                            .sslContext(client.sslContext())
+                            .sslParameters(client.sslParameters())
+                            .build());
+                }
+            }
+        }
+        return t;
+    }
+
+    @Override
+    public Response send(String method, URL url, Map<String, String> headers, int timeoutMillis) throws IOException {
+        HttpRequest.Builder builder = HttpRequest.newBuilder(toURI(url))
+                .method(method, HttpRequest.BodyPublishers.noBody());
+        headers.forEach(builder::header);
+        if (timeoutMillis > 0)
+            builder.timeout(Duration.ofMillis(timeoutMillis));
+
+        try {
+            return new ClientResponse(client.send(builder.build(), HttpResponse.BodyHandlers.ofInputStream()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while requesting " + url);
+        }
+    }
+
+    /**
+     * Converts a {@link URL} to a {@link URI}, escaping any
+     * characters that browsers tolerate but URIs don't allow
+     */
+    private static URI toURI(URL url) throws IOException {
+        try {
+            return url.toURI();
+        } catch (URISyntaxException e) {
+            try {
+                return new URI(url.getProtocol(), url.getUserInfo(), url.getHost(), url.getPort(),
+                        url.getPath(), url.getQuery(), url.getRef());
+            } catch (URISyntaxException ex) {
+                throw new MalformedURLException(ex.getMessage());
+            }
+        }
+    }
+
+    private static class ClientResponse implements Response {
+        private final HttpResponse<InputStream> response;
+
+        private ClientResponse(HttpResponse<InputStream> response) {
+            this.response = response;
+        }
+
+        @Override
+        public int getStatus() {
+            return response.statusCode();
+        }
+
+        @Override
+        public URL getURL() {
+            try {
+                return response.uri().toURL();
+            } catch (MalformedURLException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return response.headers().firstValue(name).orElse(null);
+        }
+
+        @Override
+        public InputStream getBody() {
+            return response.body();
+        }
+
+        @Override
+        public void close() throws IOException {
+            response.body().close();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package net.frebib.sscdownloader.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.URL;
+
+/**
+ * A {@link Response} whose first bytes have been read ahead so they can be looked at.
+ * The body still starts from the beginning, so nothing is requested twice
+ */
+public class PeekedResponse implements Response {
+    private final Response res;
+    private final byte[] peeked;
+    private final int length;
+    private final InputStream body;
+
+    private PeekedResponse(Response res, byte[] peeked, int length, InputStream rest) {
+        this.res = res;
+        this.peeked = peeked;
+        this.length = length;
+        this.body = new SequenceInputStream(new ByteArrayInputStream(peeked, 0, length), rest);
+    }
+
+    /**
+     * Reads the start of a response body
+     * @param res the response, whose body hasn't been read
+     * @param count the most bytes to read, fewer if the body is shorter
+     * @return the response, with the bytes read
+     * @throws IOException if the body can't be read
+     */
+    public static PeekedResponse peek(Response res, int count) throws IOException {
+        InputStream in = res.getBody();
+        byte[] buf = new byte[count];
+        int length = 0;
+        for (int read; length < count && (read = in.read(buf, length, count - length)) != -1; )
+            length += read;
+        return new PeekedResponse(res, buf, length, in);
+    }
+
+    /**
+     * Gets the bytes that were read ahead
+     */
+    public byte[] getPeeked() {
+        return peeked;
+    }
+
+    /**
+     * Gets the amount of bytes that were read ahead
+     */
+    public int getPeekedLength() {
+        return length;
+    }
+
+    @Override
+    public int getStatus() throws IOException {
+        return res.getStatus();
+    }
+
+    @Override
+    public URL getURL() {
+        return res.getURL();
+    }
+
+    @Override
+    public String getHeader(String name) {
+        return res.getHeader(name);
+    }
+
+    @Override
+    public InputStream getBody() {
+        return body;
+    }
+
+    @Override
+    public void close() throws IOException {
+        res.close();
+    }
+}
@@ -0,0 +1,66 @@
+package net.frebib.sscdownloader.http;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+
+/**
+ * The status, headers and body of a response received from a {@link Transport}.
+ * Closing the response releases the connection so it can be reused, or
+ * aborts the transfer if the body hasn't been read to the end
+ */
+public interface Response extends Closeable {
+    /**
+     * Gets the HTTP status code, such as 200 or 206
+     */
+    int getStatus() throws IOException;
+
+    /**
+     * Gets the {@link URL} that the response came from, after following any redirects
+     */
+    URL getURL();
+
+    /**
+     * Gets the first value of a response header
+     * @param name case-insensitive name of the header
+     * @return the value, or null if the header wasn't sent
+     */
+    String getHeader(String name);
+
+    /**
+     * Gets the body of the response. Can only be read once
+     * @return a stream of the response body
+     * @throws IOException if the body can't be read
+     */
+    InputStream getBody() throws IOException;
+
+    /**
+     * Gets whether the status code is in the 2xx range
+     */
+    default boolean isSuccess() throws IOException {
+        int status = getStatus();
+        return status >= 200 && status <= 299;
+    }
+
+    /**
+     * Gets the {@code Content-Type} header
+     * @return the mimetype and any parameters, or null if it wasn't sent
+     */
+    default String getContentType() {
+        return getHeader("Content-Type");
+    }
+
+    /**
+     * Gets the {@code Content-Length} header
+     * @return the length of the body in bytes, or -1 if it isn't known
+     */
+    default long getContentLength() {
+        String length = getHeader("Content-Length");
+        try {
+            return length != null ? Long.parseLong(length.trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package net.frebib.sscdownloader.http;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Sends HTTP requests on behalf of the crawler, evaluator and downloader.
+ * Implementations are shared between threads and are expected to
+ * reuse connections to the same host where they can
+ */
+public interface Transport {
+    /**
+     * Sends a request and waits for the response headers
+     * @param method the request method, such as {@code GET} or {@code HEAD}
+     * @param url link to request
+     * @param headers extra request headers to send
+     * @param timeoutMillis how long to wait for the response, or 0 to wait forever
+     * @return the response, which must be closed
+     * @throws IOException if the request fails
+     */
+    Response send(String method, URL url, Map<String, String> headers, int timeoutMillis) throws IOException;
+
+    /**
+     * Gets a transport for the extra byte ranges of a segmented download. Each range
+     * must travel over its own connection for segmenting to be worth it, so a transport
+     * that multiplexes requests over one connection returns one that doesn't
+     * @return a transport that sends concurrent requests over separate connections
+     */
+    default Transport forSegments() {
+        return this;
+    }
+
+    /**
+     * Sends a {@code GET} request with no extra headers
+     * @param url link to request
+     * @return the response, which must be closed
+     * @throws IOException if the request fails
+     */
+    default Response get(URL url) throws IOException {
+        return send("GET", url, Collections.emptyMap(), 0);
+    }
+
+    /**
+     * Sends a {@code HEAD} request with no extra headers
+     * @param url link to request
+     * @return the response, which must be closed
+     * @throws IOException if the request fails
+     */
+    default Response head(URL url) throws IOException {
+        return send("HEAD", url, Collections.emptyMap(), 0);
+    }
+}
@@ -0,0 +1,27 @@
+package net.frebib.sscdownloader.http;
+
+/**
+ * Holds the {@link Transport} used when one isn't given explicitly
+ */
+public final class Transports {
+    private static volatile Transport current = new HttpClientTransport();
+
+    private Transports() { }
+
+    /**
+     * Gets the default transport. Uses a {@link HttpClientTransport} unless changed
+     */
+    public static Transport getDefault() {
+        return current;
+    }
+
+    /**
+     * Changes the default transport for all subsequent requests
+     * @param transport the new transport
+     */
+    public static void setDefault(Transport transport) {
+        if (transport == null)
+            throw new IllegalArgumentException("Transport cannot be null");
+        current = transport;
+    }
+}
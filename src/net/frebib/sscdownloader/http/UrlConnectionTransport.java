@@ -0,0 +1,66 @@
+package net.frebib.sscdownloader.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * A {@link Transport} backed by {@link HttpURLConnection}, relying on
+ * the JDK's keep-alive cache to reuse connections. Only speaks HTTP/1.1
+ */
+public class UrlConnectionTransport implements Transport {
+
+    @Override
+    public Response send(String method, URL url, Map<String, String> headers, int timeoutMillis) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setRequestMethod(method);
+        conn.setConnectTimeout(timeoutMillis);
+        conn.setReadTimeout(timeoutMillis);
+        headers.forEach(conn::setRequestProperty);
+        conn.connect();
+        return new ConnectionResponse(conn);
+    }
+
+    private static class ConnectionResponse implements Response {
+        private final HttpURLConnection conn;
+        private InputStream body;
+
+        private ConnectionResponse(HttpURLConnection conn) {
+            this.conn = conn;
+        }
+
+        @Override
+        public int getStatus() throws IOException {
+            return conn.getResponseCode();
+        }
+
+        @Override
+        public URL getURL() {
+            return conn.getURL();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return conn.getHeaderField(name);
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (body == null)
+                body = conn.getInputStream();
+            return body;
+        }
+
+        @Override
+        public void close() {
+            // Closing the stream hands the connection back to the keep-alive cache
+            try {
+                getBody().close();
+            } catch (IOException e) {
+                conn.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package net.frebib.sscdownloader.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A total that only goes up, such as bytes downloaded or requests sent.
+ * Adding to it never blocks, even when many threads add at once
+ */
+public class Counter implements CounterMXBean {
+    private final LongAdder count = new LongAdder();
+
+    /**
+     * Adds one to the total
+     */
+    public void inc() {
+        count.increment();
+    }
+
+    /**
+     * Adds an amount to the total
+     * @param amount the amount
+     */
+    public void add(long amount) {
+        count.add(amount);
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+}
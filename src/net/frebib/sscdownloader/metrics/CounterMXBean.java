@@ -0,0 +1,11 @@
+package net.frebib.sscdownloader.metrics;
+
+/**
+ * The JMX view of a {@link Counter}
+ */
+public interface CounterMXBean {
+    /**
+     * Gets the total counted
+     */
+    long getCount();
+}
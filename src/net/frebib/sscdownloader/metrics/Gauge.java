@@ -0,0 +1,42 @@
+package net.frebib.sscdownloader.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A value that goes up and down, such as the amount of tasks queued. Either
+ * kept by calling {@link #inc()} and {@link #dec()}, or read from a supplier
+ */
+public class Gauge implements GaugeMXBean {
+    private final LongAdder value;
+    private final LongSupplier supplier;
+
+    Gauge() {
+        this.value = new LongAdder();
+        this.supplier = null;
+    }
+
+    Gauge(LongSupplier supplier) {
+        this.value = null;
+        this.supplier = supplier;
+    }
+
+    /**
+     * Adds one to the value
+     */
+    public void inc() {
+        value.increment();
+    }
+
+    /**
+     * Takes one from the value
+     */
+    public void dec() {
+        value.decrement();
+    }
+
+    @Override
+    public long getValue() {
+        return supplier != null ? supplier.getAsLong() : value.sum();
+    }
+}
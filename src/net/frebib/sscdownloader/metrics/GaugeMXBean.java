@@ -0,0 +1,11 @@
+package net.frebib.sscdownloader.metrics;
+
+/**
+ * The JMX view of a {@link Gauge}
+ */
+public interface GaugeMXBean {
+    /**
+     * Gets the current value
+     */
+    long getValue();
+}
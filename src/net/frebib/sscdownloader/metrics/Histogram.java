@@ -0,0 +1,135 @@
+package net.frebib.sscdownloader.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The distribution of a duration, such as the time taken by requests. Durations
+ * are counted in buckets that double in width every {@value #SUB_BUCKETS} buckets, so
+ * any duration from a nanosecond to centuries is kept to within an eighth of its
+ * value in a few kilobytes. Recording only increments counters, without locking
+ */
+public class Histogram implements HistogramMXBean {
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) << SUB_BITS;
+
+    private final AtomicLongArray buckets;
+    private final LongAdder count, sum;
+    private final AtomicLong max;
+
+    public Histogram() {
+        this.buckets = new AtomicLongArray(BUCKETS);
+        this.count = new LongAdder();
+        this.sum = new LongAdder();
+        this.max = new AtomicLong();
+    }
+
+    /**
+     * Records a duration
+     * @param nanos the duration in nanoseconds
+     */
+    public void record(long nanos) {
+        if (nanos < 0)
+            nanos = 0;
+        buckets.incrementAndGet(indexOf(nanos));
+        count.increment();
+        sum.add(nanos);
+        if (nanos > max.get())
+            max.accumulateAndGet(nanos, Math::max);
+    }
+
+    /**
+     * Records the time since an earlier {@link System#nanoTime()}
+     * @param startNanos the time the duration started
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Gets the duration that a fraction of the recorded durations are shorter than
+     * @param fraction the fraction, between 0 and 1
+     * @return the duration in nanoseconds, or 0 if nothing has been recorded
+     */
+    public long percentile(double fraction) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            total += counts[i] = buckets.get(i);
+        if (total == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank))
+                return Math.min(upperBoundOf(i), max.get());
+        }
+        return max.get();
+    }
+
+    /**
+     * Gets the average duration in nanoseconds
+     */
+    public double mean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Gets the longest duration in nanoseconds
+     */
+    public long max() {
+        return max.get();
+    }
+
+    @Override
+    public long getCount() {
+        return count.sum();
+    }
+
+    @Override
+    public double getMeanMillis() {
+        return mean() / 1e6;
+    }
+
+    @Override
+    public double getMaxMillis() {
+        return max() / 1e6;
+    }
+
+    @Override
+    public double get50thPercentileMillis() {
+        return percentile(0.5) / 1e6;
+    }
+
+    @Override
+    public double get90thPercentileMillis() {
+        return percentile(0.9) / 1e6;
+    }
+
+    @Override
+    public double get99thPercentileMillis() {
+        return percentile(0.99) / 1e6;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) << SUB_BITS | sub;
+    }
+
+    private static long upperBoundOf(int index) {
+        if (index < SUB_BUCKETS)
+            return index;
+        int exp = (index >>> SUB_BITS) + SUB_BITS - 1;
+        long sub = index & (SUB_BUCKETS - 1);
+        long lower = (SUB_BUCKETS + sub) << (exp - SUB_BITS);
+        return lower + (1L << (exp - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,36 @@
+package net.frebib.sscdownloader.metrics;
+
+/**
+ * The JMX view of a {@link Histogram} of durations, in milliseconds
+ */
+public interface HistogramMXBean {
+    /**
+     * Gets the amount of durations recorded
+     */
+    long getCount();
+
+    /**
+     * Gets the average duration
+     */
+    double getMeanMillis();
+
+    /**
+     * Gets the longest duration
+     */
+    double getMaxMillis();
+
+    /**
+     * Gets the duration half of the recorded durations are shorter than
+     */
+    double get50thPercentileMillis();
+
+    /**
+     * Gets the duration 90% of the recorded durations are shorter than
+     */
+    double get90thPercentileMillis();
+
+    /**
+     * Gets the duration 99% of the recorded durations are shorter than
+     */
+    double get99thPercentileMillis();
+}
@@ -0,0 +1,221 @@
+package net.frebib.sscdownloader.metrics;
+
+import net.frebib.sscdownloader.Logs;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * A registry of named {@link Counter}s, {@link Gauge}s and {@link Histogram}s that the
+ * crawler, evaluator, downloader and executors record into. Metrics are created on
+ * first use and looked up without locking afterwards, and recording into them never
+ * locks either. The registry can be exposed as JMX MBeans under
+ * {@value #DOMAIN}, and printed as a text snapshot
+ */
+public class Metrics {
+    /**
+     * The JMX domain the metrics are registered under
+     */
+    public static final String DOMAIN = "net.frebib.sscdownloader";
+
+    private static final Metrics DEFAULT = new Metrics();
+    private static final int MAX_STATUS = 600;
+
+    private final Map<String, Object> metrics;
+    private final AtomicReferenceArray<Counter> statuses;
+    private final Counter requests, errors;
+    private volatile MBeanServer server;
+    private ScheduledExecutorService reporter;
+    private ScheduledFuture<?> report;
+
+    public Metrics() {
+        this.metrics = new ConcurrentHashMap<>();
+        this.statuses = new AtomicReferenceArray<>(MAX_STATUS);
+        this.requests = counter("http.requests");
+        this.errors = counter("http.errors");
+    }
+
+    /**
+     * Gets the registry the downloader records into
+     */
+    public static Metrics getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Gets a counter, creating it if it doesn't exist
+     * @param name name of the counter
+     * @return the counter
+     */
+    public Counter counter(String name) {
+        return get(name, Counter.class, Counter::new);
+    }
+
+    /**
+     * Gets a gauge that is kept with {@link Gauge#inc()} and {@link Gauge#dec()},
+     * creating it if it doesn't exist
+     * @param name name of the gauge
+     * @return the gauge
+     */
+    public Gauge gauge(String name) {
+        return get(name, Gauge.class, Gauge::new);
+    }
+
+    /**
+     * Adds a gauge that reads its value from a supplier, unless one already has the name
+     * @param name name of the gauge
+     * @param supplier supplies the current value
+     * @return the gauge
+     */
+    public Gauge gauge(String name, LongSupplier supplier) {
+        return get(name, Gauge.class, () -> new Gauge(supplier));
+    }
+
+    /**
+     * Gets a histogram, creating it if it doesn't exist
+     * @param name name of the histogram
+     * @return the histogram
+     */
+    public Histogram histogram(String name) {
+        return get(name, Histogram.class, Histogram::new);
+    }
+
+    /**
+     * Counts a response to a request, by its status and the host it came from.
+     * Statuses of 400 and above are also counted as errors
+     * @param url the link that was requested
+     * @param status the status code of the response
+     */
+    public void response(URL url, int status) {
+        requests.inc();
+        counter("host." + url.getHost() + ".requests").inc();
+        status(status).inc();
+        if (status >= 400) {
+            errors.inc();
+            counter("host." + url.getHost() + ".errors").inc();
+        }
+    }
+
+    /**
+     * Counts a request that failed without a response
+     * @param url the link that was requested
+     */
+    public void failure(URL url) {
+        requests.inc();
+        errors.inc();
+        counter("host." + url.getHost() + ".requests").inc();
+        counter("host." + url.getHost() + ".errors").inc();
+    }
+
+    /**
+     * Registers every metric, and any created later, with the platform MBean server
+     * @return the Metrics instance, for command chaining
+     */
+    public synchronized Metrics exposeJmx() {
+        if (server != null)
+            return this;
+        server = ManagementFactory.getPlatformMBeanServer();
+        metrics.forEach(this::register);
+        return this;
+    }
+
+    /**
+     * Prints a {@link #snapshot()} periodically, on a background thread
+     * @param out the stream to print to
+     * @param periodMillis the time between snapshots
+     * @return the Metrics instance, for command chaining
+     */
+    public synchronized Metrics startReporting(PrintStream out, long periodMillis) {
+        stopReporting();
+        if (reporter == null)
+            reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "metrics");
+                t.setDaemon(true);
+                return t;
+            });
+        report = reporter.scheduleAtFixedRate(() -> out.print(snapshot()),
+                periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    /**
+     * Stops printing snapshots
+     */
+    public synchronized void stopReporting() {
+        if (report != null)
+            report.cancel(false);
+        report = null;
+    }
+
+    /**
+     * Gets the current value of every metric as text, one per line sorted by name
+     * @return the snapshot
+     */
+    public String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Object> e : new TreeMap<>(metrics).entrySet()) {
+            Object m = e.getValue();
+            if (m instanceof Counter)
+                sb.append(String.format("%-40s %12d%n", e.getKey(), ((Counter) m).getCount()));
+            else if (m instanceof Gauge)
+                sb.append(String.format("%-40s %12d%n", e.getKey(), ((Gauge) m).getValue()));
+            else {
+                Histogram h = (Histogram) m;
+                sb.append(String.format("%-40s %12d  mean %.1fms  p50 %.1fms  p90 %.1fms  p99 %.1fms  max %.1fms%n",
+                        e.getKey(), h.getCount(), h.getMeanMillis(), h.get50thPercentileMillis(),
+                        h.get90thPercentileMillis(), h.get99thPercentileMillis(), h.getMaxMillis()));
+            }
+        }
+        return sb.toString();
+    }
+
+    private Counter status(int status) {
+        if (status < 0 || status >= MAX_STATUS)
+            return counter("http.status." + status);
+        Counter c = statuses.get(status);
+        if (c == null) {
+            c = counter("http.status." + status);
+            statuses.set(status, c);
+        }
+        return c;
+    }
+
+    private <M> M get(String name, Class<M> type, Supplier<M> factory) {
+        Object m = metrics.get(name);
+        if (m == null)
+            m = metrics.computeIfAbsent(name, n -> {
+                M created = factory.get();
+                if (server != null)
+                    register(n, created);
+                return created;
+            });
+        if (!type.isInstance(m))
+            throw new IllegalArgumentException("Metric " + name + " is a " + m.getClass().getSimpleName());
+        return type.cast(m);
+    }
+
+    private void register(String name, Object metric) {
+        try {
+            ObjectName id = new ObjectName(DOMAIN + ":type=" + metric.getClass().getSimpleName()
+                    + ",name=" + ObjectName.quote(name));
+            if (!server.isRegistered(id))
+                server.registerMBean(metric, id);
+        } catch (JMException e) {
+            Logs.LOG.warning("Unable to register metric " + name + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package net.frebib.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed size, thread safe Bloom filter over 64-bit hashes. It can say for
+ * certain that a value hasn't been added, but may falsely report that one has.
+ * Bits are set with compare-and-swap so readers and writers never block
+ */
+public class BloomFilter {
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashCount;
+
+    /**
+     * Creates a filter sized for an expected amount of values
+     * @param expected amount of values that will be added
+     * @param falsePositives the acceptable false positive rate once full, such as 0.01
+     */
+    public BloomFilter(long expected, double falsePositives) {
+        expected = Math.max(1, expected);
+        double ln2 = Math.log(2);
+        long m = (long) Math.ceil(-expected * Math.log(falsePositives) / (ln2 * ln2));
+        int words = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(1, (m + 63) >>> 6));
+        this.bits = new AtomicLongArray(words);
+        this.bitCount = (long) words << 6;
+        this.hashCount = Math.max(1, (int) Math.round((double) bitCount / expected * ln2));
+    }
+
+    /**
+     * Adds a value to the filter
+     * @param hash a well mixed 64-bit hash of the value
+     * @return true if the value definitely hadn't been added before
+     */
+    public boolean put(long hash) {
+        boolean changed = false;
+        int h1 = (int) hash, h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = index(h1 + i * h2);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long old;
+            do {
+                old = bits.get(word);
+                if ((old & mask) != 0)
+                    break;
+            } while (!bits.compareAndSet(word, old, old | mask));
+            changed |= (old & mask) == 0;
+        }
+        return changed;
+    }
+
+    /**
+     * Gets whether a value might have been added to the filter
+     * @param hash a well mixed 64-bit hash of the value
+     * @return false if the value definitely hasn't been added
+     */
+    public boolean mightContain(long hash) {
+        int h1 = (int) hash, h2 = (int) (hash >>> 32);
+        for (int i = 0; i < hashCount; i++) {
+            long bit = index(h1 + i * h2);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Gets the size of the filter in bits
+     */
+    public long getBitCount() {
+        return bitCount;
+    }
+
+    private long index(int combined) {
+        return (combined & 0xFFFFFFFFL) % bitCount;
+    }
+}
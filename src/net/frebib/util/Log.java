@@ -1,20 +1,47 @@
 package net.frebib.util;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 import java.util.logging.*;
 
+/**
+ * Writes log messages to a file and the console. The level is checked before a message
+ * is formatted or its caller looked up, so disabled messages cost almost nothing, and
+ * the {@link Supplier} overloads don't build the message at all unless it is written.
+ * Messages are handed to a background thread that writes them, through a queue of
+ * {@value #QUEUE_SIZE} messages; what happens when it is full is set with
+ * {@link #setOverflow(Overflow)}
+ */
 public class Log implements Thread.UncaughtExceptionHandler {
+    /**
+     * The most messages that can be waiting to be written
+     */
+    public static final int QUEUE_SIZE = 8192;
+
     private static Level EXCEPTION_LEVEL = Level.SEVERE;
+    private static final StackWalker WALKER = StackWalker.getInstance();
 
     private static Logger logger;
-    private FileHandler fh;
+    private StreamHandler fh;
+    private ConsoleHandler ch;
+    private AsyncHandler async;
+    private volatile int threshold;
+    private volatile Overflow overflow = Overflow.BLOCK;
 
     public Log(Level logLevel) {
         logger = Logger.getLogger("downloader");
         logger.setLevel(logLevel);
+        updateThreshold();
     }
 
     public Log setLogOutput(String path) {
@@ -24,51 +51,268 @@ public class Log implements Thread.UncaughtExceptionHandler {
 
             System.setProperty("java.util.logging.SimpleFormatter.format",
                     "%1$tY-%1$tm-%1$td %1$tH:%1$tM:%1$tS [%4$s] %5$s%6$s%n");
-            fh = new FileHandler(path);
-            fh.setFormatter(new SimpleFormatter());
+            // Flushed by the writer whenever it catches up, rather than after every message
+            fh = new StreamHandler(new FileOutputStream(path), new SimpleFormatter());
+            fh.setLevel(Level.ALL);
 
             logger.setUseParentHandlers(false); // Stops logging to the console
-            logger.addHandler(fh);
-            ConsoleHandler ch = new ConsoleHandler();
+            ch = new ConsoleHandler();
             ch.setLevel(logger.getLevel());
-            logger.addHandler(ch);
+            if (async == null) {
+                async = new AsyncHandler();
+                logger.addHandler(async);
+            }
+            async.handlers.add(fh);
+            async.handlers.add(ch);
         } catch (IOException e) {
             e.printStackTrace();
         }
+        updateThreshold();
+        return this;
+    }
+
+    /**
+     * Sets the lowest level of message that is logged anywhere
+     * @param level the level
+     * @return the Log instance, for command chaining
+     */
+    public Log setLevel(Level level) {
+        logger.setLevel(level);
+        updateThreshold();
         return this;
     }
 
+    public Log setConsoleLevel(Level level) {
+        if (ch != null)
+            ch.setLevel(level);
+        updateThreshold();
+        return this;
+    }
+
+    /**
+     * Sets what happens to a message when the queue of messages waiting to be written
+     * is full. Blocks by default, so no messages are lost
+     * @param overflow the policy
+     * @return the Log instance, for command chaining
+     */
+    public Log setOverflow(Overflow overflow) {
+        this.overflow = overflow;
+        return this;
+    }
+
+    /**
+     * Gets the amount of messages dropped because the queue was full
+     */
+    public long getDropped() {
+        return async != null ? async.dropped.get() : 0;
+    }
+
+    /**
+     * Gets whether a message of a level would be written anywhere
+     * @param level the level of the message
+     * @return true if it would be written
+     */
+    public boolean isLoggable(Level level) {
+        return level.intValue() >= threshold;
+    }
+
     public void exit(int exitcode) {
         info("Downloader exting with exitcode=" + exitcode);
         close();
     }
+
+    /**
+     * Writes any waiting messages and closes the log file
+     */
     public void close() {
-        if (fh != null)
+        if (async != null)
+            async.close();
+        else if (fh != null)
             fh.close();
     }
 
     @Override
     public void uncaughtException(Thread thread, Throwable t) {
+        if (!isLoggable(EXCEPTION_LEVEL))
+            return;
         String exceptionPadding = "~~~~~~~~~~~~~~~~~~~~~~~~~~";
-        logger.log(EXCEPTION_LEVEL,
-                addThreadName(exceptionPadding + t.getStackTrace() + exceptionPadding), t);
+        log(EXCEPTION_LEVEL, exceptionPadding + t.getStackTrace() + exceptionPadding, t);
+    }
+
+    /**
+     * Works out the lowest level that is written by the logger and any of its outputs
+     */
+    private void updateThreshold() {
+        int level = logger.getLevel() != null ? logger.getLevel().intValue() : Level.INFO.intValue();
+        if (async != null) {
+            int lowest = Level.OFF.intValue();
+            for (Handler h : async.handlers)
+                lowest = Math.min(lowest, h.getLevel().intValue());
+            level = Math.max(level, lowest);
+        }
+        threshold = level;
+    }
+
+    /**
+     * Logs a message with the thread and source line it came from. The caller
+     * is found by walking up the stack to the first frame outside of this class
+     */
+    private void log(Level level, String msg, Throwable thrown) {
+        StackWalker.StackFrame caller = WALKER.walk(frames -> frames
+                .filter(f -> !f.getClassName().equals(Log.class.getName()))
+                .findFirst()
+                .orElse(null));
+        String source = caller != null ? caller.getFileName() + " @ " + caller.getLineNumber() : "?";
+        String text = "[" + Thread.currentThread().getName() + "]\t[" + source + "]\t> " + msg;
+
+        // Setting the source stops the record looking it up, on the wrong thread
+        LogRecord record = new LogRecord(level, text);
+        record.setSourceClassName(caller != null ? caller.getClassName() : null);
+        record.setSourceMethodName(caller != null ? caller.getMethodName() : null);
+        record.setThrown(thrown);
+        record.setLoggerName(logger.getName());
+        logger.log(record);
     }
 
-    private String addThreadName(String msg) {
-        StackTraceElement el = Thread.currentThread().getStackTrace()[3];
-        String caller = el.getFileName() + " @ " + el.getLineNumber();
-        return "[" + Thread.currentThread().getName() + "]\t[" + caller + "]\t> " + msg;
+    private void log(Level level, String msg) {
+        if (isLoggable(level))
+            log(level, msg, null);
     }
 
-    public void finest(String msg) { logger.finest(addThreadName(msg)); }
-    public void finer(String msg) { logger.finer(addThreadName(msg)); }
-    public void fine(String msg) { logger.fine(addThreadName(msg)); }
-    public void info(String msg) { logger.info(addThreadName(msg)); }
-    public void warning(String msg) { logger.log(Level.WARNING, addThreadName(msg)); }
-    public void severe(String msg) { logger.log(Level.SEVERE, addThreadName(msg)); }
-    public void exception(Exception e) {
+    private void log(Level level, Supplier<String> msg) {
+        if (isLoggable(level))
+            log(level, msg.get(), null);
+    }
+
+    public void finest(String msg) { log(Level.FINEST, msg); }
+    public void finer(String msg) { log(Level.FINER, msg); }
+    public void fine(String msg) { log(Level.FINE, msg); }
+    public void info(String msg) { log(Level.INFO, msg); }
+    public void warning(String msg) { log(Level.WARNING, msg); }
+    public void severe(String msg) { log(Level.SEVERE, msg); }
+
+    public void finest(Supplier<String> msg) { log(Level.FINEST, msg); }
+    public void finer(Supplier<String> msg) { log(Level.FINER, msg); }
+    public void fine(Supplier<String> msg) { log(Level.FINE, msg); }
+    public void info(Supplier<String> msg) { log(Level.INFO, msg); }
+    public void warning(Supplier<String> msg) { log(Level.WARNING, msg); }
+    public void severe(Supplier<String> msg) { log(Level.SEVERE, msg); }
+
+    public void exception(Throwable e) {
+        if (!isLoggable(EXCEPTION_LEVEL))
+            return;
         StringWriter sw = new StringWriter();
         e.printStackTrace(new PrintWriter(sw));
-        logger.log(EXCEPTION_LEVEL, addThreadName(sw.toString()));
+        log(EXCEPTION_LEVEL, sw.toString(), null);
+    }
+
+    /**
+     * What happens to a message when the queue of messages waiting to be written is full
+     */
+    public enum Overflow {
+        /**
+         * The logging thread waits for space in the queue
+         */
+        BLOCK,
+        /**
+         * Messages below {@link Level#WARNING} are dropped and counted,
+         * warnings and errors still wait for space
+         */
+        DROP
+    }
+
+    /**
+     * Queues records and publishes them to the real handlers on a background thread
+     */
+    private class AsyncHandler extends Handler {
+        private final List<Handler> handlers = new CopyOnWriteArrayList<>();
+        private final BlockingQueue<LogRecord> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+        private final AtomicLong dropped = new AtomicLong();
+        private final Thread writer;
+        private final AtomicBoolean closing = new AtomicBoolean();
+        private volatile boolean closed;
+
+        AsyncHandler() {
+            writer = new Thread(this::write, "log-writer");
+            writer.setDaemon(true);
+            writer.start();
+            // Daemon threads are stopped at exit, so write what is left first
+            Runtime.getRuntime().addShutdownHook(new Thread(this::close, "log-flush"));
+        }
+
+        @Override
+        public void publish(LogRecord record) {
+            if (closed) {
+                publishAll(record);
+                return;
+            }
+            if (queue.offer(record))
+                return;
+            if (overflow == Overflow.DROP && record.getLevel().intValue() < Level.WARNING.intValue()) {
+                dropped.incrementAndGet();
+                return;
+            }
+            try {
+                queue.put(record);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                publishAll(record);
+            }
+        }
+
+        private void write() {
+            long reported = 0;
+            while (true) {
+                try {
+                    LogRecord record = queue.poll();
+                    if (record == null) {
+                        for (Handler h : handlers)
+                            h.flush();
+                        record = queue.take();
+                    }
+                    publishAll(record);
+                    long count = dropped.get();
+                    if (count != reported && queue.isEmpty()) {
+                        publishAll(new LogRecord(Level.WARNING, (count - reported)
+                                + " log messages were dropped because the queue was full"));
+                        reported = count;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Called by the writer thread, or by the logging thread once closed
+         */
+        private void publishAll(LogRecord record) {
+            for (Handler h : handlers)
+                h.publish(record);
+        }
+
+        @Override
+        public void flush() {
+            for (LogRecord record; (record = queue.poll()) != null; )
+                publishAll(record);
+            for (Handler h : handlers)
+                h.flush();
+        }
+
+        @Override
+        public void close() {
+            if (!closing.compareAndSet(false, true))
+                return;
+            writer.interrupt();
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            closed = true;
+            flush();
+            for (Handler h : handlers)
+                h.close();
+        }
     }
 }